@@ -0,0 +1,208 @@
+package com.example.routeidentifier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// The area hierarchy in memory, with the number of routes under every area kept up to date as
+// documents are added and removed, so counts never need a scan of the collection. Nodes are
+// keyed by name, which is the document's _id, and linked to their parent by the last name in
+// their path. An area that's in some path but hasn't been added itself yet is kept as a
+// placeholder, so documents can be added in any order.
+//
+// Adding or removing a route changes the count of each of its ancestors, so it takes time in the
+// depth of the hierarchy rather than its size. The tree is saved as just the names, flags and
+// parents of its nodes, parents first, and the counts are summed again when it's read
+public class AreaTree {
+    private static final int FORMAT = 1;
+
+    private static final class Node {
+        final String id;
+        Node parent;
+        final ArrayList<Node> children = new ArrayList<>();
+        // Whether the document was added, rather than only named in a path
+        boolean present;
+        boolean route;
+        // Routes in the subtree, including this node
+        int routes;
+        // Position in the file while the tree is saved
+        int number;
+
+        Node(String id) {
+            this.id = id;
+        }
+    }
+
+    private final HashMap<String, Node> nodes = new HashMap<>();
+
+    // Number of documents that were added
+    private int size;
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // Routes anywhere under the area, or 0 if there is no such area
+    public synchronized int getRouteCount(String id) {
+        Node node = nodes.get(id);
+        return node == null ? 0 : node.routes;
+    }
+
+    // Areas and routes directly in the area
+    public synchronized int getChildCount(String id) {
+        Node node = nodes.get(id);
+        return node == null ? 0 : node.children.size();
+    }
+
+    // Add a document with the name and path, like ",States,Kentucky,", replacing one with the
+    // same name, which may have been somewhere else in the tree
+    public synchronized void add(String id, String path, boolean route) {
+        Node node = nodes.get(id);
+        if (node == null) {
+            node = new Node(id);
+            nodes.put(id, node);
+        }
+        if (node.present) {
+            size--;
+            if (node.route) addRoutes(node, -1);
+        }
+        node.present = true;
+        node.route = route;
+        size++;
+
+        setParent(node, getPath(path));
+        if (route) addRoutes(node, 1);
+    }
+
+    // Remove the document with the name. An area that still has children is kept as their
+    // placeholder parent
+    public synchronized void remove(String id) {
+        Node node = nodes.get(id);
+        if (node == null || !node.present) return;
+        node.present = false;
+        size--;
+        if (node.route) addRoutes(node, -1);
+        node.route = false;
+        prune(node);
+    }
+
+    public synchronized void clear() {
+        nodes.clear();
+        size = 0;
+    }
+
+    // Save the tree to the file, replacing it once it's complete
+    public synchronized void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(FORMAT);
+            out.writeInt(nodes.size());
+
+            // Number the nodes parents first, so a parent is always read before its children
+            ArrayDeque<Node> queue = new ArrayDeque<>();
+            for (Node node : nodes.values()) {
+                if (node.parent == null) queue.add(node);
+            }
+            for (int number = 0; !queue.isEmpty(); number++) {
+                Node node = queue.poll();
+                node.number = number;
+                out.writeUTF(node.id);
+                out.writeInt(node.parent == null ? -1 : node.parent.number);
+                out.writeByte((node.present ? 1 : 0) | (node.route ? 2 : 0));
+                queue.addAll(node.children);
+            }
+        }
+        if (!tmp.renameTo(file)) throw new IOException("Couldn't replace " + file);
+    }
+
+    // Replace the tree with one saved by save()
+    public synchronized void read(File file) throws IOException {
+        clear();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FORMAT) throw new IOException("Unknown area tree format");
+            int count = in.readInt();
+            Node[] read = new Node[count];
+            for (int i = 0; i < count; i++) {
+                Node node = new Node(in.readUTF());
+                int parent = in.readInt();
+                int flags = in.readByte();
+                node.present = (flags & 1) != 0;
+                node.route = (flags & 2) != 0;
+                if (parent >= 0) {
+                    node.parent = read[parent];
+                    node.parent.children.add(node);
+                }
+                if (node.present) size++;
+                read[i] = node;
+                nodes.put(node.id, node);
+            }
+
+            // Children come after their parents, so sum the counts from the end
+            for (int i = count - 1; i >= 0; i--) {
+                Node node = read[i];
+                if (node.route) node.routes++;
+                if (node.parent != null) node.parent.routes += node.routes;
+            }
+        } catch (IOException e) {
+            clear();
+            throw e;
+        }
+    }
+
+    // The area at the end of the path, like Kentucky for ",States,Kentucky,", adding it and its
+    // ancestors as placeholders if they aren't in the tree. Null for the top of the hierarchy
+    private Node getPath(String path) {
+        int end = path.length() - 1;
+        if (end <= 0) return null;
+        int start = path.lastIndexOf(',', end - 1) + 1;
+        String id = path.substring(start, end);
+        Node node = nodes.get(id);
+        if (node == null) {
+            node = new Node(id);
+            nodes.put(id, node);
+            setParent(node, getPath(path.substring(0, start)));
+        }
+        return node;
+    }
+
+    // Move the node and its subtree under the parent, moving its route count with it. A parent
+    // in the node's own subtree, from a path naming the node itself, is taken as no parent
+    private void setParent(Node node, Node parent) {
+        for (Node p = parent; p != null; p = p.parent) {
+            if (p == node) parent = null;
+        }
+        if (node.parent == parent) return;
+        Node old = node.parent;
+        addRoutes(node.parent, -node.routes);
+        if (old != null) old.children.remove(node);
+        node.parent = parent;
+        if (parent != null) parent.children.add(node);
+        addRoutes(parent, node.routes);
+        if (old != null) prune(old);
+    }
+
+    // Add to the route count of the node and its ancestors
+    private static void addRoutes(Node node, int routes) {
+        for (; node != null; node = node.parent) node.routes += routes;
+    }
+
+    // Drop the node, and its ancestors in turn, while it's a placeholder with no children
+    private void prune(Node node) {
+        while (node != null && !node.present && node.children.isEmpty()) {
+            nodes.remove(node.id);
+            Node parent = node.parent;
+            if (parent != null) parent.children.remove(node);
+            node = parent;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.routeidentifier;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Vector annotations of the bolts measured in an image, in image pixel coordinates. They're drawn
+// over the image by BoltOverlayView instead of into its pixels, so measuring a bolt never has to
+// touch the rest of the image
+public class BoltAnnotations {
+    // Outline, diameter and center of a measured bolt
+    public static class Bolt {
+        // Consecutive x, y pairs of the outline
+        public final float[] outline;
+        public final float[] diameter;
+        public final float centerX;
+        public final float centerY;
+
+        Bolt(float[] outline, float[] diameter, float centerX, float centerY) {
+            this.outline = outline;
+            this.diameter = diameter;
+            this.centerX = centerX;
+            this.centerY = centerY;
+        }
+    }
+
+    // Line between two bolts, labelled with the distance between them
+    public static class Spacing {
+        public final float[] line;
+        public final String label;
+
+        Spacing(float[] line, String label) {
+            this.line = line;
+            this.label = label;
+        }
+    }
+
+    // Possible bolt found automatically, waiting for the user to confirm it
+    public static class Candidate {
+        public final float centerX;
+        public final float centerY;
+        public final float radius;
+        public final String label;
+
+        Candidate(float centerX, float centerY, float radius, String label) {
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.radius = radius;
+            this.label = label;
+        }
+    }
+
+    public final List<Bolt> bolts = new ArrayList<>();
+    public final List<Spacing> spacings = new ArrayList<>();
+    public final List<Candidate> candidates = new ArrayList<>();
+
+    // Bolt that would be measured in the box the image is zoomed to, or null if there is none.
+    // It's replaced from the preview thread, so it's read once per frame
+    public volatile Bolt preview;
+
+    void addBolt(Bolt bolt) {
+        bolts.add(bolt);
+    }
+
+    void addSpacing(Spacing spacing) {
+        spacings.add(spacing);
+    }
+
+    void addCandidate(Candidate candidate) {
+        candidates.add(candidate);
+    }
+
+    void clearCandidates() {
+        candidates.clear();
+    }
+
+    void setPreview(Bolt bolt) {
+        preview = bolt;
+    }
+}
@@ -0,0 +1,237 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.RotatedRect;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Scans a whole gray image for outlines shaped like bolt hangers, so the user only has to confirm
+// bolts instead of zooming to each one. The image is split into overlapping tiles that run through
+// BoltDetector's edge detection and a contour search in parallel on a ForkJoinPool. Tiles are
+// submats of the image, so no pixels are copied, and their edge buffers come from MatPool
+public class BoltCandidateFinder {
+    // Largest dimension of the image to scan, which the filter below is tuned for
+    public static final int SCAN_SIZE = 2048;
+    // Size of a tile in pixels
+    static final int TILE_SIZE = 512;
+    // Smallest and largest outline diameter that can be a bolt, in pixels of an image about 2000
+    // pixels across. Tiles overlap by the largest diameter so that every bolt lies entirely inside
+    // at least one tile
+    static final int MIN_DIAMETER = 24;
+    static final int MAX_DIAMETER = 160;
+    // Shape filter. Hangers are oval plates, so their outlines are at most this elongated and
+    // their convex hulls are within this fraction of the area of an ellipse
+    private static final double MAX_ASPECT_RATIO = 3;
+    private static final double ELLIPSE_TOLERANCE = 0.15;
+    // Standard deviation of the gray levels in the box around a hanger at which it gets full score
+    private static final double REFERENCE_STD_DEV = 35;
+    // Most candidates returned
+    static final int MAX_CANDIDATES = 30;
+    // Half the size of the box to measure a candidate in, relative to its radius. About as much
+    // room around the bolt as users leave when zooming to it
+    private static final double BOX_SCALE = 1.5;
+
+    // A possible bolt, with its score between 0 and 1. Coordinates are in image pixels
+    public static class Candidate {
+        public final double x;
+        public final double y;
+        public final double radius;
+        public final double score;
+
+        Candidate(double x, double y, double radius, double score) {
+            this.x = x;
+            this.y = y;
+            this.radius = radius;
+            this.score = score;
+        }
+
+        // The same candidate in an image scale times larger
+        Candidate scaled(double scale) {
+            return new Candidate(x * scale, y * scale, radius * scale, score);
+        }
+
+        // Box around the candidate to measure it in with BoltDetector. It may extend past the
+        // edges of the image
+        public Rect getBox() {
+            int half = (int) Math.ceil(BOX_SCALE * radius);
+            return new Rect((int) x - half, (int) y - half, 2 * half, 2 * half);
+        }
+    }
+
+    private BoltCandidateFinder() {}
+
+    // Find bolt candidates in a gray image, best first, using the common pool
+    public static List<Candidate> find(Mat gray) {
+        return find(gray, ForkJoinPool.commonPool());
+    }
+
+    public static List<Candidate> find(Mat gray, ForkJoinPool pool) {
+        List<Rect> tiles = getTiles(gray.cols(), gray.rows());
+        List<Candidate> found = pool.invoke(new TileTask(gray, tiles, 0, tiles.size()));
+        return rank(found);
+    }
+
+    // Split an image into tiles that overlap by MAX_DIAMETER
+    static List<Rect> getTiles(int width, int height) {
+        List<Rect> tiles = new ArrayList<>();
+        int step = TILE_SIZE - MAX_DIAMETER;
+        for (int y = 0; ; y += step) {
+            int bottom = Math.min(height, y + TILE_SIZE);
+            for (int x = 0; ; x += step) {
+                int right = Math.min(width, x + TILE_SIZE);
+                tiles.add(new Rect(x, y, right - x, bottom - y));
+                if (right == width) break;
+            }
+            if (bottom == height) break;
+        }
+        return tiles;
+    }
+
+    // Split the tiles in halves until there's a single tile to detect
+    private static class TileTask extends RecursiveTask<List<Candidate>> {
+        // ForkJoinTask is Serializable, but tasks are never serialized
+        private static final long serialVersionUID = 1L;
+
+        private final Mat gray;
+        private final List<Rect> tiles;
+        private final int from;
+        private final int to;
+
+        TileTask(Mat gray, List<Rect> tiles, int from, int to) {
+            this.gray = gray;
+            this.tiles = tiles;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Candidate> compute() {
+            if (to - from == 1) return detectTile(gray, tiles.get(from));
+
+            int mid = (from + to) >>> 1;
+            TileTask left = new TileTask(gray, tiles, from, mid);
+            left.fork();
+            List<Candidate> found = new TileTask(gray, tiles, mid, to).compute();
+            found.addAll(left.join());
+            return found;
+        }
+    }
+
+    // Find the candidates lying entirely inside a tile
+    private static List<Candidate> detectTile(Mat gray, Rect tile) {
+        List<Candidate> found = new ArrayList<>();
+
+        // Perform edge detection in the part of a pooled buffer the size of the tile. Every
+        // buffer is the size of a whole tile, so tiles at the edges of the image share them too
+        Mat buffer = MatPool.acquire(TILE_SIZE, TILE_SIZE, gray.type());
+        Mat roi = gray.submat(tile);
+        Mat edges = buffer.submat(0, tile.height, 0, tile.width);
+        BoltDetector.findEdges(roi, edges);
+
+        // Find the contours
+        ArrayList<MatOfPoint> contours = new ArrayList<>();
+        Mat hierarchy = new Mat();
+        Imgproc.findContours(edges, contours, hierarchy, Imgproc.RETR_EXTERNAL,
+                Imgproc.CHAIN_APPROX_SIMPLE);
+        hierarchy.release();
+        roi.release();
+        edges.release();
+        MatPool.recycle(buffer);
+
+        for (MatOfPoint contour : contours) {
+            Candidate candidate = filter(gray, contour, tile);
+            if (candidate != null) found.add(candidate);
+            contour.release();
+        }
+        return found;
+    }
+
+    // Turn a contour into a candidate in image coordinates if it's shaped like a bolt, or return
+    // null if it isn't
+    private static Candidate filter(Mat gray, MatOfPoint contour, Rect tile) {
+        // Skip outlines cut off by the edge of the tile, unless it's the edge of the image. The
+        // whole outline is in a neighbouring tile
+        Rect box = Imgproc.boundingRect(contour);
+        if (box.x == 0 && tile.x > 0) return null;
+        if (box.y == 0 && tile.y > 0) return null;
+        if (box.x + box.width == tile.width && tile.x + tile.width < gray.cols()) return null;
+        if (box.y + box.height == tile.height && tile.y + tile.height < gray.rows()) return null;
+
+        // Size
+        int diameter = Math.max(box.width, box.height);
+        if (diameter < MIN_DIAMETER || diameter > MAX_DIAMETER) return null;
+
+        // Elongation of the outline
+        Point[] outline = contour.toArray();
+        MatOfPoint2f points = new MatOfPoint2f(outline);
+        RotatedRect rect = Imgproc.minAreaRect(points);
+        points.release();
+        double shortSide = Math.min(rect.size.width, rect.size.height);
+        double longSide = Math.max(rect.size.width, rect.size.height);
+        if (shortSide == 0 || longSide / shortSide > MAX_ASPECT_RATIO) return null;
+
+        // How closely the convex hull of the outline matches the ellipse inscribed in its bounding
+        // rectangle. The hull is used since the edge of a hanger is often broken, so its outline
+        // isn't closed and encloses no area of its own
+        MatOfInt hullIndices = new MatOfInt();
+        Imgproc.convexHull(contour, hullIndices);
+        int[] indices = hullIndices.toArray();
+        hullIndices.release();
+        Point[] hull = new Point[indices.length];
+        for (int i = 0; i < indices.length; i++) hull[i] = outline[indices[i]];
+        MatOfPoint hullPoints = new MatOfPoint(hull);
+        double hullArea = Imgproc.contourArea(hullPoints);
+        hullPoints.release();
+        double ellipseArea = Math.PI / 4 * shortSide * longSide;
+        double ellipticity = 1 - Math.abs(hullArea / ellipseArea - 1) / ELLIPSE_TOLERANCE;
+        if (ellipticity <= 0) return null;
+
+        // Metal hangers and their bolts have more contrast than most rock of the same shape
+        Mat roi = gray.submat(box.y + tile.y, box.y + tile.y + box.height,
+                box.x + tile.x, box.x + tile.x + box.width);
+        MatOfDouble mean = new MatOfDouble();
+        MatOfDouble stdDev = new MatOfDouble();
+        Core.meanStdDev(roi, mean, stdDev);
+        double contrast = Math.min(1, stdDev.toArray()[0] / REFERENCE_STD_DEV);
+        roi.release();
+        mean.release();
+        stdDev.release();
+
+        return new Candidate(rect.center.x + tile.x, rect.center.y + tile.y, longSide / 2,
+                ellipticity * contrast);
+    }
+
+    // Merge duplicates found in more than one tile, keeping the best scoring one of each, and
+    // return the best candidates first
+    static List<Candidate> rank(List<Candidate> found) {
+        found.sort((c1, c2) -> Double.compare(c2.score, c1.score));
+        List<Candidate> ranked = new ArrayList<>();
+        for (Candidate c : found) {
+            boolean duplicate = false;
+            for (Candidate kept : ranked) {
+                double dx = c.x - kept.x;
+                double dy = c.y - kept.y;
+                double r = Math.max(c.radius, kept.radius);
+                if (dx * dx + dy * dy < r * r) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            if (duplicate) continue;
+            ranked.add(c);
+            if (ranked.size() == MAX_CANDIDATES) break;
+        }
+        return ranked;
+    }
+}
@@ -0,0 +1,178 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+
+// Finds the outline and diameter of a bolt in a gray image of the box around it. BoltMeasurer does
+// the drawing on top of the result, so the detection itself doesn't depend on Android
+public class BoltDetector {
+    // Diameter of a bolt hanger in inches, used to convert pixel distances to real distances
+    private static final double BOLT_DIAMETER_INCHES = 2.25;
+
+    // A bolt found in a box. Coordinates are relative to the box
+    public static class Bolt {
+        public final MatOfPoint contour;
+        public final Point center;
+        public final Point end1;
+        public final Point end2;
+        public final int diameter;
+
+        Bolt(MatOfPoint contour, Point center, Point end1, Point end2, int diameter) {
+            this.contour = contour;
+            this.center = center;
+            this.end1 = end1;
+            this.end2 = end2;
+            this.diameter = diameter;
+        }
+
+        // Release the native memory of the outline
+        public void release() {
+            MatScope.release(contour);
+        }
+    }
+
+    private BoltDetector() {}
+
+    // Detect the bolt in a gray box around it, or return null if there's no outline to measure.
+    // The box itself isn't modified. The caller releases the bolt when it's done with its outline
+    public static Bolt detect(Mat grayBox) {
+        Mat edges = findEdges(grayBox);
+        try {
+            return detectInEdges(edges);
+        } finally {
+            edges.release();
+        }
+    }
+
+    // Edges of a gray image that bolt outlines are found in. The result has to be released by
+    // the caller
+    public static Mat findEdges(Mat gray) {
+        Mat edges = new Mat();
+        findEdges(gray, edges);
+        return edges;
+    }
+
+    // The same into a Mat the caller provides, like a submat of a larger buffer. A submat of a
+    // gray image is blurred with the pixels around it, so edges of neighbouring parts line up
+    public static void findEdges(Mat gray, Mat edges) {
+        Mat kernel = new Mat();
+        Imgproc.GaussianBlur(gray, edges, new Size(7, 7), 0);
+        Imgproc.Canny(edges, edges, 50, 50);
+        Imgproc.dilate(edges, edges, kernel);
+        Imgproc.erode(edges, edges, kernel);
+        kernel.release();
+    }
+
+    // Detect the bolt in the edges of the box around it, like those from findEdges() or an
+    // EdgeMap, or return null if there's no outline to measure. The edges aren't modified
+    public static Bolt detectInEdges(Mat edges) {
+        try (MatScope scope = new MatScope()) {
+            // Find the contours
+            ArrayList<MatOfPoint> contours = new ArrayList<>();
+            Imgproc.findContours(edges, contours, scope.mat(), 0, 2);
+            for (MatOfPoint contour : contours) scope.add(contour);
+            if (contours.isEmpty()) return null;
+
+            // Find the largest contour
+            Comparator<MatOfPoint> bySize = (MatOfPoint m1, MatOfPoint m2) -> m2.rows() - m1.rows();
+            contours.sort(bySize);
+            MatOfPoint largestContour = contours.get(0);
+
+            Bolt bolt = getDiameter(largestContour, edges.rows());
+            if (bolt != null) scope.keep(largestContour);
+            return bolt;
+        }
+    }
+
+    // Distance in feet between two bolts, using their known size to convert from pixels
+    public static double getSpacingFeet(Point p1, Point p2, int diam1, int diam2) {
+        double px = Math.sqrt(getEuclDist(p1, p2));
+        return 2 * BOLT_DIAMETER_INCHES * px / (diam1 + diam2) / 12;
+    }
+
+    // Distance between two points
+    private static double getEuclDist(Point p1, Point p2) {
+        return Math.pow(p1.x - p2.x, 2) + Math.pow(p1.y - p2.y, 2);
+    }
+
+    // Estimate the diameter of a contour using principle component analysis. The diameter runs
+    // between the points lying along the principal axis that are furthest along it on either
+    // side, which takes one pass over the points instead of sorting them
+    static Bolt getDiameter(MatOfPoint contour, int boxRows) {
+        int n = (int) contour.total();
+        if (n == 0) return null;
+        int[] xy = new int[2 * n];
+        contour.get(0, 0, xy);
+
+        // Find center and direction of the principal axis
+        double[] axis = getOrientation(xy, n);
+        double cx = axis[0];
+        double cy = axis[1];
+        double dx = axis[2];
+        double dy = axis[3];
+
+        // Only keep points in the contour lying along the axis, and find the two most extreme
+        double threshold = boxRows / 20.0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        int minIdx = -1;
+        int maxIdx = -1;
+        for (int i = 0; i < 2 * n; i += 2) {
+            double px = xy[i] - cx;
+            double py = xy[i + 1] - cy;
+            if (Math.abs(px * dy - py * dx) >= threshold) continue;
+
+            // Distance along the axis
+            double t = px * dx + py * dy;
+            if (t < min) {
+                min = t;
+                minIdx = i;
+            }
+            if (t > max) {
+                max = t;
+                maxIdx = i;
+            }
+        }
+        if (minIdx < 0) return null;
+
+        Point end1 = new Point(xy[minIdx], xy[minIdx + 1]);
+        Point end2 = new Point(xy[maxIdx], xy[maxIdx + 1]);
+        int diameter = (int) Math.sqrt(getEuclDist(end1, end2));
+        return new Bolt(contour, new Point(cx, cy), end1, end2, diameter);
+    }
+
+    // Center and unit direction {cx, cy, dx, dy} of the principal axis of n points given as x, y
+    // pairs. The covariance is only 2x2, so it's accumulated in one pass and its largest
+    // eigenvector is found in closed form
+    static double[] getOrientation(int[] xy, int n) {
+        long sumX = 0;
+        long sumY = 0;
+        long sumXX = 0;
+        long sumYY = 0;
+        long sumXY = 0;
+        for (int i = 0; i < 2 * n; i += 2) {
+            long x = xy[i];
+            long y = xy[i + 1];
+            sumX += x;
+            sumY += y;
+            sumXX += x * x;
+            sumYY += y * y;
+            sumXY += x * y;
+        }
+        double meanX = (double) sumX / n;
+        double meanY = (double) sumY / n;
+        double varX = (double) sumXX / n - meanX * meanX;
+        double varY = (double) sumYY / n - meanY * meanY;
+        double covXY = (double) sumXY / n - meanX * meanY;
+
+        // Angle of the eigenvector with the largest eigenvalue
+        double theta = 0.5 * Math.atan2(2 * covXY, varX - varY);
+        return new double[]{meanX, meanY, Math.cos(theta), Math.sin(theta)};
+    }
+}
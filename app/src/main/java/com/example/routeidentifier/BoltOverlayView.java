@@ -0,0 +1,156 @@
+package com.example.routeidentifier;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.DashPathEffect;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.drawable.Drawable;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.View;
+
+import com.ortiz.touchview.TouchImageView;
+
+// Draws bolt annotations on top of a TouchImageView, following its zoom and pan. Annotations are
+// mapped to the screen every frame and drawn with fixed stroke widths and text size, so only the
+// lines are redrawn when the image moves and the image itself is never modified
+public class BoltOverlayView extends View {
+    private final Paint outlinePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint diameterPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint pointPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint centerPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint spacingPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint labelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint candidatePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint previewPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private TouchImageView imageView;
+    private BoltAnnotations annotations;
+    private int imageWidth;
+
+    // Reused every frame to map annotations to the screen
+    private final Matrix toScreen = new Matrix();
+    private final Path path = new Path();
+    private final float[] points = new float[4];
+    private final float[] center = new float[2];
+
+    public BoltOverlayView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+
+        outlinePaint.setStyle(Paint.Style.STROKE);
+        outlinePaint.setColor(Color.RED);
+        outlinePaint.setStrokeWidth(dp(2));
+        diameterPaint.setColor(Color.GREEN);
+        diameterPaint.setStrokeWidth(dp(1));
+        pointPaint.setColor(Color.BLACK);
+        centerPaint.setColor(Color.MAGENTA);
+        spacingPaint.setColor(Color.BLACK);
+        spacingPaint.setStrokeWidth(dp(3));
+        labelPaint.setColor(Color.RED);
+        labelPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 18,
+                getResources().getDisplayMetrics()));
+        labelPaint.setShadowLayer(dp(2), 0, 0, Color.WHITE);
+        candidatePaint.setStyle(Paint.Style.STROKE);
+        candidatePaint.setColor(Color.YELLOW);
+        candidatePaint.setStrokeWidth(dp(2));
+        candidatePaint.setPathEffect(new DashPathEffect(new float[]{dp(6), dp(4)}, 0));
+        previewPaint.setStyle(Paint.Style.STROKE);
+        previewPaint.setColor(Color.CYAN);
+        previewPaint.setStrokeWidth(dp(2));
+        previewPaint.setPathEffect(new DashPathEffect(new float[]{dp(6), dp(4)}, 0));
+    }
+
+    // Draw over the image view, which must have the same bounds as this view and be invalidated
+    // along with it whenever the image moves
+    public void attach(TouchImageView imageView) {
+        this.imageView = imageView;
+    }
+
+    // Show the annotations of an image that is imageWidth pixels wide, which may be a different
+    // size than the image shown in the image view
+    public void setAnnotations(BoltAnnotations annotations, int imageWidth) {
+        this.annotations = annotations;
+        this.imageWidth = imageWidth;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (annotations == null || imageView == null) return;
+        if (!getImageToScreen(imageView, imageWidth, toScreen)) return;
+
+        for (BoltAnnotations.Bolt bolt : annotations.bolts) {
+            // Outline
+            drawOutline(canvas, bolt.outline, outlinePaint);
+
+            // Diameter and its end points
+            toScreen.mapPoints(points, bolt.diameter);
+            canvas.drawLine(points[0], points[1], points[2], points[3], diameterPaint);
+            canvas.drawCircle(points[0], points[1], dp(3), pointPaint);
+            canvas.drawCircle(points[2], points[3], dp(3), pointPaint);
+
+            center[0] = bolt.centerX;
+            center[1] = bolt.centerY;
+            toScreen.mapPoints(center);
+            canvas.drawCircle(center[0], center[1], dp(3), centerPaint);
+        }
+
+        for (BoltAnnotations.Spacing spacing : annotations.spacings) {
+            toScreen.mapPoints(points, spacing.line);
+            canvas.drawLine(points[0], points[1], points[2], points[3], spacingPaint);
+            canvas.drawText(spacing.label, (points[0] + points[2]) / 2, (points[1] + points[3]) / 2,
+                    labelPaint);
+        }
+
+        for (BoltAnnotations.Candidate candidate : annotations.candidates) {
+            center[0] = candidate.centerX;
+            center[1] = candidate.centerY;
+            toScreen.mapPoints(center);
+            float radius = toScreen.mapRadius(candidate.radius);
+            canvas.drawCircle(center[0], center[1], radius, candidatePaint);
+            canvas.drawText(candidate.label, center[0] + radius, center[1] - radius, labelPaint);
+        }
+
+        // Outline and diameter of the bolt a pick would measure
+        BoltAnnotations.Bolt preview = annotations.preview;
+        if (preview != null) {
+            drawOutline(canvas, preview.outline, previewPaint);
+            toScreen.mapPoints(points, preview.diameter);
+            canvas.drawLine(points[0], points[1], points[2], points[3], previewPaint);
+        }
+    }
+
+    // Draw a closed outline given as x, y pairs in image pixels
+    private void drawOutline(Canvas canvas, float[] outline, Paint paint) {
+        path.rewind();
+        for (int i = 0; i < outline.length; i += 2) {
+            if (i == 0) path.moveTo(outline[i], outline[i + 1]);
+            else path.lineTo(outline[i], outline[i + 1]);
+        }
+        path.close();
+        path.transform(toScreen);
+        canvas.drawPath(path, paint);
+    }
+
+    // Get the transform from the pixels of an image imageWidth pixels wide to the screen, when the
+    // image view shows the image at any resolution. Return false if the view has no image
+    static boolean getImageToScreen(TouchImageView imageView, int imageWidth, Matrix toScreen) {
+        Drawable drawable = imageView.getDrawable();
+        if (drawable == null || imageWidth == 0) return false;
+
+        // Image pixels to drawable pixels to screen pixels
+        float scale = (float) drawable.getIntrinsicWidth() / imageWidth;
+        toScreen.setScale(scale, scale);
+        toScreen.postConcat(imageView.getImageMatrix());
+        return true;
+    }
+
+    private float dp(float value) {
+        return TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, value,
+                getResources().getDisplayMetrics());
+    }
+}
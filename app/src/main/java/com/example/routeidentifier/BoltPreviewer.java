@@ -0,0 +1,73 @@
+package com.example.routeidentifier;
+
+import android.graphics.RectF;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Previews the bolt in the box the image is zoomed to while the user pans and zooms, so a wrong
+// pick shows before it's made. Requests are debounced, so a gesture only starts a detection once
+// it pauses, and a new request cancels the one waiting before it. Detection runs on a single
+// background thread, and results are handed to the UI thread, where the ones a newer request or
+// cancel() has overtaken are dropped
+public class BoltPreviewer {
+    // How long the zoomed box has to stay put before its bolt is detected. Short enough that
+    // the preview follows the gesture at about the display's frame rate
+    private static final long DEBOUNCE_MS = 16;
+
+    // Called on the UI thread with the bolt in the zoomed box, or null if there is none
+    public interface Listener {
+        void onPreview(BoltAnnotations.Bolt bolt);
+    }
+
+    private final BoltMeasurer measurer;
+    private final Executor uiThread;
+    private final Listener listener;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            r -> {
+                Thread thread = new Thread(r, "BoltPreviewer");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // Incremented by every request, so a detection can tell if it's stale
+    private final AtomicInteger generation = new AtomicInteger();
+    private ScheduledFuture<?> pending;
+
+    // Requests and cancels are made on the UI thread, which uiThread runs the results on
+    public BoltPreviewer(BoltMeasurer measurer, Executor uiThread, Listener listener) {
+        this.measurer = measurer;
+        this.uiThread = uiThread;
+        this.listener = listener;
+    }
+
+    // Preview the bolt in the bounding box of image zoom, replacing any earlier request
+    public synchronized void request(RectF zoom) {
+        int request = generation.incrementAndGet();
+        if (pending != null) pending.cancel(false);
+        RectF box = new RectF(zoom);
+        pending = executor.schedule(() -> {
+            if (generation.get() != request) return;
+            BoltAnnotations.Bolt bolt = measurer.previewBolt(box);
+            uiThread.execute(() -> {
+                if (generation.get() == request) listener.onPreview(bolt);
+            });
+        }, DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Drop any request that's waiting or running, without previewing anything
+    public synchronized void cancel() {
+        generation.incrementAndGet();
+        if (pending != null) pending.cancel(false);
+        pending = null;
+    }
+
+    public void shutdown() {
+        cancel();
+        executor.shutdown();
+    }
+}
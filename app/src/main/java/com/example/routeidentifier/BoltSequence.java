@@ -0,0 +1,50 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Bolts measured one after another along a route, and the spacing between consecutive bolts. It
+// only works on gray Mats, so it's shared by BoltMeasurer in the app and the desktop batch tool
+public class BoltSequence {
+    // Centers of the bolts in image coordinates, and their diameters in pixels
+    private final List<Point> centers = new ArrayList<>();
+    private final List<Integer> diameters = new ArrayList<>();
+
+    // Measure the bolt in a gray box whose top left corner is at left, top in the image, and add
+    // it to the end of the sequence. Return the bolt, with coordinates relative to the box, or
+    // null if no bolt was found. The caller releases the bolt
+    public BoltDetector.Bolt add(Mat grayBox, int left, int top) {
+        return add(BoltDetector.detect(grayBox), left, top);
+    }
+
+    // Add a bolt detected in a box whose top left corner is at left, top in the image, like one
+    // detected in the edges of an EdgeMap. Null bolts are skipped and returned as they are
+    public BoltDetector.Bolt add(BoltDetector.Bolt bolt, int left, int top) {
+        if (bolt == null) return null;
+
+        centers.add(new Point(bolt.center.x + left, bolt.center.y + top));
+        diameters.add(bolt.diameter);
+        return bolt;
+    }
+
+    public int size() {
+        return centers.size();
+    }
+
+    public Point getCenter(int i) {
+        return centers.get(i);
+    }
+
+    public int getDiameter(int i) {
+        return diameters.get(i);
+    }
+
+    // Distance in feet between bolt i and the bolt before it
+    public double getSpacingFeet(int i) {
+        return BoltDetector.getSpacingFeet(centers.get(i), centers.get(i - 1), diameters.get(i),
+                diameters.get(i - 1));
+    }
+}
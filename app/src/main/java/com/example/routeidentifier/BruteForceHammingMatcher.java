@@ -0,0 +1,43 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+// Exact matcher that compares every query descriptor with every training descriptor
+public class BruteForceHammingMatcher implements HammingMatcher {
+    private final Mat train;
+
+    public BruteForceHammingMatcher(Mat trainDescriptors) {
+        this.train = trainDescriptors;
+    }
+
+    @Override
+    public void knnMatch2(Mat queryDescriptors, int[] nearest, int[] nearestDist, int[] secondDist) {
+        // Find the two nearest neighbours of every query descriptor in a single native call, which
+        // returns them as two dense Mats instead of a Mat of matches per descriptor
+        int n = queryDescriptors.rows();
+        int k;
+        int[] distances;
+        int[] indices;
+        try (MatScope scope = new MatScope()) {
+            Mat dist = scope.mat();
+            Mat nidx = scope.mat();
+            Core.batchDistance(queryDescriptors, train, dist, CvType.CV_32S, nidx,
+                    Core.NORM_HAMMING, 2);
+
+            // Read the results in bulk. There is only one neighbour if there is one training
+            // descriptor
+            k = dist.cols();
+            distances = new int[n * k];
+            indices = new int[n * k];
+            dist.get(0, 0, distances);
+            nidx.get(0, 0, indices);
+        }
+        for (int i = 0; i < n; i++) {
+            nearest[i] = indices[i * k];
+            nearestDist[i] = (indices[i * k] >= 0) ? distances[i * k] : NO_MATCH;
+            secondDist[i] = (k > 1 && indices[i * k + 1] >= 0) ? distances[i * k + 1] : NO_MATCH;
+        }
+    }
+}
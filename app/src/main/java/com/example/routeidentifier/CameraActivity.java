@@ -4,14 +4,21 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 
 import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Trace;
 import android.util.Log;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.ImageView;
+import android.widget.Switch;
 
-import com.mongodb.client.model.Filters;
-import com.mongodb.stitch.android.services.mongodb.remote.RemoteFindIterable;
 import com.otaliastudios.cameraview.CameraException;
 import com.otaliastudios.cameraview.CameraListener;
 import com.otaliastudios.cameraview.CameraOptions;
@@ -23,11 +30,17 @@ import android.widget.Spinner;
 
 import org.bson.Document;
 import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Locale;
 
-import static com.example.routeidentifier.StartActivity.coll;
+import static com.example.routeidentifier.StartActivity.repository;
 
 
 public class CameraActivity extends AppCompatActivity implements View.OnClickListener {
@@ -36,15 +49,26 @@ public class CameraActivity extends AppCompatActivity implements View.OnClickLis
     protected CameraView camera;
     private long mCaptureTime;
 
+    // File in the app's files directory the pipeline metrics are dumped to whenever the camera
+    // is left, for comparing stage latencies across devices
+    private static final String METRICS_FILE = "pipeline_metrics.csv";
+
     private HashMap<String, Document> routes;
 
+    // Live identification on the preview frames
+    private LiveRouteTracker tracker;
+    private ImageView overlayView;
+    private Bitmap overlayBitmap;
+    private Paint routePaint;
+
+    // Area whose routes are matched against the picture
+    private static final String AREA_PATH = ",States,Kentucky,Red River Gorge,Roadside,";
+
     private void setupSpinner(Spinner spinner) {
-        String path = ",States,Kentucky,Red River Gorge,Roadside,";
-        RemoteFindIterable<Document> query = coll.find(Filters.regex("path", path));
-        ArrayList<Document> result = new ArrayList<>();
-        query.into(result).addOnSuccessListener(documents -> {
-            Log.e(TAG, "Success");
+        repository.getDescendants(AREA_PATH).thenAcceptAsync(documents -> {
             ArrayList<String> states = new ArrayList<>();
+            // First option matches against every route in the area
+            states.add(getString(R.string.all_routes));
             for (Document d : documents) {
                 String name = d.getString("_id");
                 states.add(name);
@@ -54,8 +78,7 @@ public class CameraActivity extends AppCompatActivity implements View.OnClickLis
             adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
             spinner.setAdapter(adapter);
             spinner.setOnItemSelectedListener(new DropdownListener());
-        }).addOnCanceledListener(() -> Log.e(TAG, "Canceled"))
-                .addOnFailureListener(documents -> Log.e(TAG, "Failed"));
+        }, this::runOnUiThread);
     }
 
     @Override
@@ -63,6 +86,21 @@ public class CameraActivity extends AppCompatActivity implements View.OnClickLis
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_camera);
 
+        // Show the pipeline stages in system traces, and label the metrics with the device
+        PipelineMetrics.setTracer(new PipelineMetrics.Tracer() {
+            @Override
+            public void beginSection(String name) {
+                Trace.beginSection(name);
+            }
+
+            @Override
+            public void endSection() {
+                Trace.endSection();
+            }
+        });
+        PipelineMetrics.setDevice(String.format(Locale.US, "%s %s (%s, API %d)",
+                Build.MANUFACTURER, Build.MODEL, Build.HARDWARE, Build.VERSION.SDK_INT));
+
         routes = new HashMap<>();
         Spinner spinner = findViewById(R.id.spinner);
         setupSpinner(spinner);
@@ -81,6 +119,79 @@ public class CameraActivity extends AppCompatActivity implements View.OnClickLis
         camera.mapGesture(Gesture.TAP, GestureAction.FOCUS_WITH_MARKER); // Tap to focus!
 
         findViewById(R.id.snapPicture).setOnClickListener(this);
+
+        // Setup live identification on the preview frames
+        overlayView = findViewById(R.id.container);
+        routePaint = new Paint();
+        routePaint.setColor(0xFF0033aa);
+        routePaint.setAntiAlias(true);
+        routePaint.setStrokeWidth(20);
+        routePaint.setStyle(Paint.Style.STROKE);
+        routePaint.setStrokeJoin(Paint.Join.ROUND);
+        routePaint.setStrokeCap(Paint.Cap.ROUND);
+        final FeatureDetector liveDetector = new FeatureDetector();
+        final File filesDir = getFilesDir();
+        tracker = new LiveRouteTracker(PicturePreviewActivity.getRanker(),
+                query -> PicturePreviewActivity.getLiveShortlist(liveDetector, filesDir, query),
+                new LiveListener());
+        Switch liveSwitch = findViewById(R.id.liveSwitch);
+        liveSwitch.setOnCheckedChangeListener((button, isChecked) -> setLiveMode(isChecked));
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        try {
+            PipelineMetrics.dump(new File(getFilesDir(), METRICS_FILE));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to dump pipeline metrics", e);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // The camera is destroyed along with the activity, so no more frames come
+        tracker.stop();
+    }
+
+    // Toggle identifying the route on every preview frame
+    private void setLiveMode(boolean live) {
+        if (live) {
+            tracker.reset();
+            camera.addFrameProcessor(tracker);
+        } else {
+            camera.removeFrameProcessor(tracker);
+            tracker.stop();
+            clearLiveRoute();
+        }
+    }
+
+    // Draw the tracked route points (in overlay view coordinates) over the preview
+    private void drawLiveRoute(float[] points) {
+        int w = overlayView.getWidth(), h = overlayView.getHeight();
+        if (w == 0 || h == 0) return;
+        long start = PipelineMetrics.start(PipelineMetrics.Stage.RENDER);
+        if (overlayBitmap == null || overlayBitmap.getWidth() != w || overlayBitmap.getHeight() != h) {
+            overlayBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            overlayView.setImageBitmap(overlayBitmap);
+        }
+
+        Path path = new Path();
+        path.moveTo(points[0], points[1]);
+        for (int i = 2; i < points.length; i += 2) {
+            path.lineTo(points[i], points[i + 1]);
+        }
+        overlayBitmap.eraseColor(Color.TRANSPARENT);
+        new Canvas(overlayBitmap).drawPath(path, routePaint);
+        overlayView.invalidate();
+        PipelineMetrics.stop(PipelineMetrics.Stage.RENDER, start);
+    }
+
+    private void clearLiveRoute() {
+        if (overlayBitmap == null) return;
+        overlayBitmap.eraseColor(Color.TRANSPARENT);
+        overlayView.invalidate();
     }
 
     @Override
@@ -95,7 +206,7 @@ public class CameraActivity extends AppCompatActivity implements View.OnClickLis
 
     private void capturePictureSnapshot() {
         if (camera.isTakingPicture()) return;
-        mCaptureTime = System.currentTimeMillis();
+        mCaptureTime = System.nanoTime();
         Log.e(TAG, "Capturing picture snapshot...");
         camera.takePictureSnapshot();
     }
@@ -104,7 +215,8 @@ public class CameraActivity extends AppCompatActivity implements View.OnClickLis
 
         @Override
         public void onCameraOpened(@NonNull CameraOptions options) {
-            //camera.addFrameProcessor(new InnerFrameProcessor(MainActivity.this));
+            // Identify the route from scratch whenever the camera (re)opens
+            tracker.reset();
         }
 
         @Override
@@ -117,23 +229,82 @@ public class CameraActivity extends AppCompatActivity implements View.OnClickLis
         public void onPictureTaken(@NonNull PictureResult result) {
             super.onPictureTaken(result);
 
-            // This can happen if picture was taken with a gesture.
-            long callbackTime = System.currentTimeMillis();
-            if (mCaptureTime == 0) mCaptureTime = callbackTime - 300;
-            Log.e(TAG, "onPictureTaken called! Launching activity. Delay:");
+            // The capture time is unknown if the picture was taken with a gesture
+            if (mCaptureTime != 0) {
+                PipelineMetrics.record(PipelineMetrics.Stage.CAPTURE, System.nanoTime() - mCaptureTime);
+            }
+            Log.e(TAG, "onPictureTaken called! Launching activity.");
             PicturePreviewActivity.setPictureResult(result);
             Intent intent = new Intent(CameraActivity.this, PicturePreviewActivity.class);
-            intent.putExtra("delay", callbackTime - mCaptureTime);
             startActivity(intent);
             mCaptureTime = 0;
             Log.e(TAG, "onPictureTaken called! Launched activity.");
         }
     }
 
+    // Projects the route of the tracked reference image into the preview
+    private class LiveListener implements LiveRouteTracker.Listener {
+        @Override
+        public void onRouteTracked(String name, ImageFeatures reference, Mat H, int width, int height,
+                                   int rotation) {
+            Document doc = PicturePreviewActivity.getTargetDocument(name);
+            int viewWidth = overlayView.getWidth(), viewHeight = overlayView.getHeight();
+            if (doc == null || viewWidth == 0) return;
+
+            // Route points are stored in the coordinates of the view they were drawn in, which is
+            // assumed to be as wide as this one
+            ArrayList points = (ArrayList) doc.get("points");
+            float toReference = (float) reference.width / viewWidth;
+            float[] route = new float[points.size() * 2];
+            for (int i = 0; i < points.size(); i++) {
+                Document point = (Document) points.get(i);
+                route[i * 2] = point.getInteger("x") * toReference;
+                route[i * 2 + 1] = point.getInteger("y") * toReference;
+            }
+
+            // Project the route into the frame
+            try (MatScope scope = new MatScope()) {
+                MatOfPoint2f src = scope.add(new MatOfPoint2f());
+                src.alloc(points.size());
+                src.put(0, 0, route);
+                MatOfPoint2f dst = scope.add(new MatOfPoint2f());
+                Core.perspectiveTransform(src, dst, H);
+                dst.get(0, 0, route);
+            }
+
+            // Rotate the frame points upright and scale them the way the preview fills the view
+            boolean sideways = rotation == 90 || rotation == 270;
+            int rotatedWidth = sideways ? height : width;
+            int rotatedHeight = sideways ? width : height;
+            float scale = Math.max((float) viewWidth / rotatedWidth, (float) viewHeight / rotatedHeight);
+            float dx = (viewWidth - rotatedWidth * scale) / 2;
+            float dy = (viewHeight - rotatedHeight * scale) / 2;
+            for (int i = 0; i < route.length; i += 2) {
+                float x = route[i], y = route[i + 1];
+                float rx = x, ry = y;
+                if (rotation == 90) { rx = height - y; ry = x; }
+                else if (rotation == 180) { rx = width - x; ry = height - y; }
+                else if (rotation == 270) { rx = y; ry = width - x; }
+                route[i] = rx * scale + dx;
+                route[i + 1] = ry * scale + dy;
+            }
+            runOnUiThread(() -> drawLiveRoute(route));
+        }
+
+        @Override
+        public void onRouteLost() {
+            runOnUiThread(CameraActivity.this::clearLiveRoute);
+        }
+    }
+
     private static class DropdownListener implements AdapterView.OnItemSelectedListener {
         public void onItemSelected(AdapterView<?> parent, View view,
                                    int pos, long id) {
-            // An item was selected. You can retrieve the selected item using
+            // Match against every route in the area unless a single route was selected
+            if (pos == 0) {
+                PicturePreviewActivity.setCandidateArea(AREA_PATH);
+                return;
+            }
             String selected_photo = parent.getItemAtPosition(pos).toString();
             PicturePreviewActivity.setTargetPhoto(selected_photo);
         }
@@ -0,0 +1,164 @@
+package com.example.routeidentifier;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.View;
+
+import com.ortiz.touchview.TouchImageView;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Draws detail tiles of a large image over the low resolution preview shown by a TouchImageView.
+// Once the user zooms in past the resolution of the preview, the visible part of the image is
+// decoded in tiles at the resolution of the current zoom level on a background thread. Tiles are
+// cached by zoom level and position, and tiles that scroll out of view before they are decoded are
+// skipped.
+public class DetailTileView extends View {
+    private static final String TAG = "DetailTileView";
+    // Size of a decoded tile in pixels
+    private static final int TILE_SIZE = 512;
+
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final ExecutorService decoder = Executors.newSingleThreadExecutor();
+
+    // Decoded tiles, limited to an eighth of the app's memory
+    private final LruCache<String, Bitmap> tiles = new LruCache<String, Bitmap>(
+            (int) (Runtime.getRuntime().maxMemory() / 8)) {
+        @Override
+        protected int sizeOf(String key, Bitmap tile) {
+            return tile.getByteCount();
+        }
+    };
+    // Tiles that are visible, and tiles that are being decoded
+    private final Set<String> wanted = new HashSet<>();
+    private final Set<String> pending = new HashSet<>();
+
+    private TouchImageView imageView;
+    private TiledImageSource source;
+    private int previewSample;
+
+    // Reused every frame
+    private final Matrix toScreen = new Matrix();
+    private final RectF bounds = new RectF();
+    private final float[] scale = new float[9];
+
+    public DetailTileView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    // Draw over the image view, which must have the same bounds as this view and be invalidated
+    // along with it whenever the image moves
+    public void attach(TouchImageView imageView) {
+        this.imageView = imageView;
+    }
+
+    // Show tiles of the source over a preview of it decoded with the given sample size. Tiles of
+    // the previous source that haven't started decoding are skipped, so it can be recycled once
+    // this returns
+    public void setSource(TiledImageSource source, int previewSample) {
+        synchronized (wanted) {
+            wanted.clear();
+        }
+        pending.clear();
+        tiles.evictAll();
+        this.source = source;
+        this.previewSample = previewSample;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (source == null || imageView == null) return;
+        if (!BoltOverlayView.getImageToScreen(imageView, source.getWidth(), toScreen)) return;
+
+        // Pick the sample size whose pixels are as small as, or just smaller than, screen pixels.
+        // Nothing needs to be drawn while the preview already has enough detail
+        toScreen.getValues(scale);
+        double imagePerScreen = 1 / Math.abs(scale[Matrix.MSCALE_X]);
+        int sample = 1;
+        while (sample * 2 <= imagePerScreen) sample *= 2;
+        if (sample >= previewSample) return;
+
+        // Part of the image that is visible
+        RectF zoom = imageView.getZoomedRect();
+        int left = (int) (zoom.left * source.getWidth());
+        int top = (int) (zoom.top * source.getHeight());
+        int right = (int) Math.ceil(zoom.right * source.getWidth());
+        int bottom = (int) Math.ceil(zoom.bottom * source.getHeight());
+
+        // Draw the visible tiles that are decoded and request the others
+        int extent = TILE_SIZE * sample;
+        synchronized (wanted) {
+            wanted.clear();
+            for (int ty = top / extent; ty * extent < bottom; ty++) {
+                for (int tx = left / extent; tx * extent < right; tx++) {
+                    Rect region = new Rect(tx * extent, ty * extent, (tx + 1) * extent,
+                            (ty + 1) * extent);
+                    String key = sample + "/" + tx + "/" + ty;
+                    Bitmap tile = tiles.get(key);
+                    if (tile == null) {
+                        wanted.add(key);
+                        request(key, region, sample);
+                        continue;
+                    }
+                    region.intersect(0, 0, source.getWidth(), source.getHeight());
+                    bounds.set(region);
+                    toScreen.mapRect(bounds);
+                    canvas.drawBitmap(tile, null, bounds, paint);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        decoder.shutdownNow();
+    }
+
+    // Decode a tile in the background, unless it's no longer visible by the time it would start.
+    // A tile that fails to decode, like one whose source was recycled while it was decoding, is
+    // requested again the next time it's drawn
+    private void request(String key, Rect region, int sample) {
+        if (!pending.add(key)) return;
+        final TiledImageSource requested = source;
+        decoder.execute(() -> {
+            Bitmap tile = null;
+            try {
+                boolean visible;
+                synchronized (wanted) {
+                    visible = wanted.contains(key);
+                }
+                if (visible) tile = requested.decodeRegion(region, sample);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Couldn't decode tile " + key, e);
+            } finally {
+                Bitmap decoded = tile;
+                post(() -> {
+                    // Keys of a previous source were cleared with it
+                    if (requested != source) {
+                        if (decoded != null) decoded.recycle();
+                        return;
+                    }
+                    pending.remove(key);
+                    if (decoded != null) {
+                        tiles.put(key, decoded);
+                        invalidate();
+                    }
+                });
+            }
+        });
+    }
+}
@@ -13,15 +13,12 @@ import android.widget.ExpandableListView;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import com.mongodb.client.model.Filters;
-import com.mongodb.stitch.android.services.mongodb.remote.RemoteFindIterable;
-
 import org.bson.Document;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Locale;
-import java.util.TreeMap;
-import static com.example.routeidentifier.StartActivity.coll;
+import static com.example.routeidentifier.StartActivity.repository;
 
 public class DisplayClimbingArea extends AppCompatActivity {
     private static Document document;
@@ -56,19 +53,18 @@ public class DisplayClimbingArea extends AppCompatActivity {
     public void setupActivity() {
         // Setup basic layout
         headerName.setText(regionName);
-        headerNumAreas.setText(String.format(Locale.US, "%d Areas", document.getInteger("n")));
         backgroundImage.setImageResource(R.drawable.climbing1);
 
-        // Search database for the children of clicked search result
-        RemoteFindIterable<Document> query = coll.find(Filters.regex("path", path + "$"));
-        ArrayList<Document> result = new ArrayList<>();
-
-        // Display children data in expandable list
-        query.into(result).addOnSuccessListener(documents -> {
-            MyExpandableListAdapter myListAdapter = new MyExpandableListAdapter(this, documents);
+        // Load the children of clicked search result and theirs from the local copy of the
+        // database at once, and display them in expandable list. The route count is only known once
+        // the store has been loaded, so it's shown along with them
+        repository.getSubtree(path).thenAcceptAsync(subtree -> {
+            headerNumAreas.setText(String.format(Locale.US, "%d Routes",
+                    repository.getRouteCount(regionName)));
+            MyExpandableListAdapter myListAdapter = new MyExpandableListAdapter(this, subtree);
             listView.setAdapter(myListAdapter);
             listView.setOnChildClickListener((parent, v, groupPosition, childPosition, id) -> false);
-        });
+        }, this::runOnUiThread);
     }
 
 
@@ -77,34 +73,20 @@ public class DisplayClimbingArea extends AppCompatActivity {
         private Context context;
         private ArrayList<Document> listDataHeader; // parent names
         // map from parent name to children data
-        private TreeMap<String, ArrayList<Document>> listDataChild;
+        private HashMap<String, ArrayList<Document>> listDataChild;
 
-        public MyExpandableListAdapter(Context context, ArrayList<Document> listDataHeader) {
+        // The subtree is loaded in full before the adapter is made on the UI thread, and never
+        // changes after, so every group's children are there as soon as it's shown
+        public MyExpandableListAdapter(Context context, RouteRepository.Subtree subtree) {
             this.context = context;
-            this.listDataHeader = listDataHeader;
-            this.listDataChild = new TreeMap<>();
-
-            // Iterate through parent data
-            for (Document d : listDataHeader) {
-                // Search for children of parent in database
-                String childPath = d.getString("path") + d.getString("_id") + ",$";
-                RemoteFindIterable<Document> query = coll.find(Filters.regex("path", childPath));
-                ArrayList<Document> result = new ArrayList<>();
-
-                query.into(result).addOnSuccessListener(documents -> {
-                    listDataChild.put(d.getString("_id"), documents);
-                }).addOnFailureListener(e -> {
-                    listDataChild.put(d.getString("_id"), result);
-                });
-            }
+            this.listDataHeader = subtree.children;
+            this.listDataChild = subtree.grandchildren;
         }
 
         @Override
         public Object getChild(int groupPosition, int childPosition) {
             String key = this.listDataHeader.get(groupPosition).getString("_id");
-            ArrayList<Document> children = listDataChild.get(key);
-            if (children.size() == 0) return null;
-            return children.get(childPosition);
+            return listDataChild.get(key).get(childPosition);
         }
 
         @Override
@@ -129,14 +111,20 @@ public class DisplayClimbingArea extends AppCompatActivity {
             TextView txtNameChild = convertView.findViewById(R.id.areaName);
             txtNameChild.setText(child.getString("_id"));
             TextView txtAreasChild = convertView.findViewById(R.id.numRoutes);
-            txtAreasChild.setText(String.format(Locale.US, "%d Areas", child.getInteger("n")));
+            if (child.containsKey("grade")) {
+                txtAreasChild.setText(child.getString("grade"));
+            } else {
+                txtAreasChild.setText(String.format(Locale.US, "%d Routes",
+                        repository.getRouteCount(child.getString("_id"))));
+            }
 
             return convertView;
         }
 
         @Override
         public int getChildrenCount(int groupPosition) {
-            return this.listDataHeader.get(groupPosition).getInteger("n");
+            String key = this.listDataHeader.get(groupPosition).getString("_id");
+            return listDataChild.get(key).size();
         }
 
         @Override
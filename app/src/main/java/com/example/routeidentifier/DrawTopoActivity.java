@@ -30,19 +30,19 @@ import androidx.core.app.ActivityCompat;
 import androidx.exifinterface.media.ExifInterface;
 
 import com.mongodb.BasicDBObject;
-import com.mongodb.client.model.Filters;
-import com.mongodb.stitch.android.services.mongodb.remote.RemoteFindIterable;
 import org.bson.BsonBinary;
 import org.bson.Document;
+import org.opencv.core.Mat;
 import org.opencv.core.Point;
 
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static com.example.routeidentifier.StartActivity.coll;
-import static com.example.routeidentifier.StartActivity.image_coll;
+import static com.example.routeidentifier.StartActivity.repository;
 import static com.example.routeidentifier.StartActivity.stitchUser;
 
 public class DrawTopoActivity extends AppCompatActivity {
@@ -60,8 +60,8 @@ public class DrawTopoActivity extends AppCompatActivity {
 
     // Array to store image metadata
     private static String[] imgdata;
-    // Stores image as byte array
-    private static byte[] byte_arr;
+    // Stores the image that was uploaded to the database, at the size it's drawn and matched at
+    private static Bitmap topo_bitmap;
 
     // Elements of the AlertDialog to save route information
     private EditText routeNameEditText = null;
@@ -130,9 +130,7 @@ public class DrawTopoActivity extends AppCompatActivity {
 
         // Setup spinner to show state options
         Spinner spinner = popupInputDialogView.findViewById(R.id.listStates);
-        RemoteFindIterable<Document> query = coll.find(Filters.regex("path", ",States,$"));
-        ArrayList<Document> result = new ArrayList<>();
-        query.into(result).addOnSuccessListener(documents -> {
+        repository.getChildren(",States,").thenAcceptAsync(documents -> {
             ArrayList<String> states = new ArrayList<>();
             for (Document d : documents) {
                 states.add(d.getString("_id"));
@@ -140,13 +138,11 @@ public class DrawTopoActivity extends AppCompatActivity {
             ArrayAdapter<String> adapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_dropdown_item, states);
             adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
             spinner.setAdapter(adapter);
-        });
+        }, this::runOnUiThread);
 
         // Setup spinner to display region options
         Spinner spinner2 = popupInputDialogView.findViewById(R.id.listRegions);
-        RemoteFindIterable<Document> query2 = coll.find(Filters.regex("path", ",States,Kentucky,$"));
-        ArrayList<Document> result2 = new ArrayList<>();
-        query2.into(result2).addOnSuccessListener(documents -> {
+        repository.getChildren(",States,Kentucky,").thenAcceptAsync(documents -> {
             ArrayList<String> regions = new ArrayList<>();
             Log.e("Activity", String.format("%d", documents.size()));
             for (Document d : documents) {
@@ -155,13 +151,11 @@ public class DrawTopoActivity extends AppCompatActivity {
             ArrayAdapter<String> adapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_dropdown_item, regions);
             adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
             spinner2.setAdapter(adapter);
-        });
+        }, this::runOnUiThread);
 
         // Setup spinner to display area options
         Spinner spinner3 = popupInputDialogView.findViewById(R.id.listAreas);
-        RemoteFindIterable<Document> query3 = coll.find(Filters.regex("path", ",States,Kentucky,Red River Gorge,$"));
-        ArrayList<Document> result3 = new ArrayList<>();
-        query3.into(result3).addOnSuccessListener(documents -> {
+        repository.getChildren(",States,Kentucky,Red River Gorge,").thenAcceptAsync(documents -> {
             ArrayList<String> regions = new ArrayList<>();
             Log.e("Activity", String.format("%d", documents.size()));
             for (Document d : documents) {
@@ -170,7 +164,7 @@ public class DrawTopoActivity extends AppCompatActivity {
             ArrayAdapter<String> adapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_dropdown_item, regions);
             adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
             spinner3.setAdapter(adapter);
-        });
+        }, this::runOnUiThread);
 
         // Get user input edittext and button ui controls in the popup dialog.
         routeNameEditText = popupInputDialogView.findViewById(R.id.routeName);
@@ -222,6 +216,8 @@ public class DrawTopoActivity extends AppCompatActivity {
                 doc.append("grade", dataArr[1]);
                 doc.append("bolts", dataArr[2]);
                 doc.append("path", ",States,Kentucky,Red River Gorge,Roadside,");
+                // Lets devices sync the document without downloading the whole collection
+                doc.append("updated", System.currentTimeMillis());
 
                 // Create new image document to add to database
                 Document image_doc = new Document();
@@ -242,17 +238,33 @@ public class DrawTopoActivity extends AppCompatActivity {
                 }
                 image_doc.append("points", pointArray);
 
-                // Add image to the image document
-                BsonBinary b = new BsonBinary(byte_arr);
-                image_doc.append("image", b);
-
                 // Try to add the documents to the database
-                coll.insertOne(doc).addOnSuccessListener(
-                        document -> Log.e(TAG, "Route info document inserted")
-                );
-                image_coll.insertOne(image_doc).addOnSuccessListener(remoteInsertOneResult -> {
-                    Log.e(TAG, "Image data document inserted");
+                coll.insertOne(doc).addOnSuccessListener(document -> {
+                    Log.e(TAG, "Route info document inserted");
+                    repository.put(doc);
+                });
 
+                // Compute the image features once so identification doesn't have to, then add the
+                // image document with them, and the image itself in its own collection. If they
+                // can't be computed, the image is added without them and identification computes
+                // them from the image instead
+                Mat gray = ImagePreprocessor.toGray(topo_bitmap);
+                CompletableFuture<ImageFeatures> computed =
+                        new FeatureDetector().computeFeaturesAsync(gray);
+                computed.whenComplete((features, e) -> {
+                    MatPool.recycle(gray);
+                    if (e != null) {
+                        Log.e(TAG, "Failed to compute image features", e);
+                    } else {
+                        image_doc.append("features", new BsonBinary(features.toBytes()));
+                        PicturePreviewActivity.addToIndex(getFilesDir(), doc.getString("path"),
+                                dataArr[0], features);
+                        features.release();
+                    }
+                    ImageStore.insert(image_doc, topo_bitmap).whenComplete((v, e2) -> {
+                        if (e2 != null) Log.e(TAG, "Failed to insert image data document", e2);
+                        else Log.e(TAG, "Image data document inserted");
+                    });
                 });
                 alertDialog.cancel();
             });
@@ -287,7 +299,6 @@ public class DrawTopoActivity extends AppCompatActivity {
 
                     // Initialize arrays to hold information about image
                     byte[] full_size = null;
-                    byte_arr = null;
                     imgdata = new String[3];
 
                     // Decode image and its metadata
@@ -320,11 +331,11 @@ public class DrawTopoActivity extends AppCompatActivity {
                     Bitmap bitmap = BitmapFactory.decodeByteArray(full_size, 0, full_size.length);
                     Bitmap rotated = null;
 
-                    // Scale the image down
+                    // Scale the image down to the size it's matched at
                     Matrix matrix = new Matrix();
                     int w = bitmap.getWidth();
                     int h = bitmap.getHeight();
-                    float scale = (h > w) ? 750f / h : 750f / w;
+                    float scale = (float) ImageStore.Resolution.MATCH.maxSize / Math.max(w, h);
                     matrix.postScale(scale, scale);
 
                     // Rotate the image if necessary
@@ -332,11 +343,7 @@ public class DrawTopoActivity extends AppCompatActivity {
                         matrix.postRotate(90);
                     }
                     rotated = Bitmap.createBitmap(bitmap, 0, 0, w, h, matrix, true);
-
-                    // Convert the rotated bitmap back into a byte array
-                    ByteArrayOutputStream stream = new ByteArrayOutputStream();
-                    rotated.compress(Bitmap.CompressFormat.PNG, 100, stream);
-                    byte_arr = stream.toByteArray();
+                    topo_bitmap = rotated;
 
                     // Put the image into the ImageView
                     ImageView imageView = findViewById(R.id.imageView);
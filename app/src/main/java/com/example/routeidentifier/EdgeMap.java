@@ -0,0 +1,187 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Bolt edges of a whole image, filtered once and cached in tiles, so picking a bolt only has to
+// find the contours in the edges of its box. Each tile is filtered from a gray region that
+// reaches a margin past it on every side, which covers the reach of the blur and morphology, so
+// the tiles fit together exactly as if the whole image was filtered at once.
+//
+// Tiles are filtered in the background by build(), or on demand when a box needs one that isn't
+// ready yet, and never change once they're filtered, so they can be read from any thread. Reads
+// hold a read lock, so the tiles aren't released while they're copied
+public class EdgeMap {
+    private static final int TILE_SIZE = 512;
+
+    // Pixels past a tile that affect its edges: 3 for the 7x7 blur, 1 each for the Sobel
+    // gradients, non-maximum suppression, dilation and erosion, with some to spare
+    private static final int MARGIN = 8;
+
+    // Decodes a region of the image as a gray Mat, which the map releases
+    public interface GraySource {
+        Mat decodeGray(Rect region);
+    }
+
+    private final GraySource source;
+    private final int width;
+    private final int height;
+    private final int cols;
+    private final int rows;
+
+    // Edges of each tile, completed once the tile is filtered, by row
+    private final AtomicReferenceArray<CompletableFuture<Mat>> tiles;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean released;
+
+    public EdgeMap(GraySource source, int width, int height) {
+        this.source = source;
+        this.width = width;
+        this.height = height;
+        cols = (width + TILE_SIZE - 1) / TILE_SIZE;
+        rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        tiles = new AtomicReferenceArray<>(cols * rows);
+    }
+
+    // Filter every tile that hasn't been filtered yet, stopping early if the map is released
+    public void build() {
+        for (int i = 0; i < tiles.length() && !released; i++) getTile(i);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // Whether every tile the region touches has been filtered, so reading it won't have to wait
+    public boolean isFiltered(Rect region) {
+        int left = Math.max(0, region.x);
+        int top = Math.max(0, region.y);
+        int right = Math.min(width, region.x + region.width);
+        int bottom = Math.min(height, region.y + region.height);
+        for (int row = top / TILE_SIZE; row * TILE_SIZE < bottom; row++) {
+            for (int col = left / TILE_SIZE; col * TILE_SIZE < right; col++) {
+                CompletableFuture<Mat> tile = tiles.get(row * cols + col);
+                if (tile == null || !tile.isDone()) return false;
+            }
+        }
+        return true;
+    }
+
+    // Edges of a region of the image, which the caller releases, or null if the map was
+    // released. Pixels outside the image are 0
+    public Mat getRegion(Rect region) {
+        lock.readLock().lock();
+        try {
+            return released ? null : copyRegion(region);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Mat copyRegion(Rect region) {
+        Mat edges = Mat.zeros(region.height, region.width, CvType.CV_8UC1);
+        int left = Math.max(0, region.x);
+        int top = Math.max(0, region.y);
+        int right = Math.min(width, region.x + region.width);
+        int bottom = Math.min(height, region.y + region.height);
+        for (int row = top / TILE_SIZE; row * TILE_SIZE < bottom; row++) {
+            for (int col = left / TILE_SIZE; col * TILE_SIZE < right; col++) {
+                Mat tile = getTile(row * cols + col);
+                if (tile == null) continue;
+
+                // Copy the part of the tile inside the region
+                int x0 = Math.max(left, col * TILE_SIZE);
+                int y0 = Math.max(top, row * TILE_SIZE);
+                int x1 = Math.min(right, (col + 1) * TILE_SIZE);
+                int y1 = Math.min(bottom, (row + 1) * TILE_SIZE);
+                Mat src = tile.submat(y0 - row * TILE_SIZE, y1 - row * TILE_SIZE,
+                        x0 - col * TILE_SIZE, x1 - col * TILE_SIZE);
+                Mat dst = edges.submat(y0 - region.y, y1 - region.y, x0 - region.x,
+                        x1 - region.x);
+                src.copyTo(dst);
+                src.release();
+                dst.release();
+            }
+        }
+        return edges;
+    }
+
+    // Stop building and release the tiles. Tiles being filtered are released once they're done
+    public void release() {
+        lock.writeLock().lock();
+        try {
+            released = true;
+            for (int i = 0; i < tiles.length(); i++) {
+                CompletableFuture<Mat> tile = tiles.get(i);
+                if (tile != null) tile.thenAccept(MatScope::release);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Edges of a tile, filtering it if no other thread has started to. Return null if the tile
+    // couldn't be decoded or the map was released
+    private Mat getTile(int i) {
+        CompletableFuture<Mat> tile = tiles.get(i);
+        if (tile == null) {
+            CompletableFuture<Mat> filtering = new CompletableFuture<>();
+            if (tiles.compareAndSet(i, null, filtering)) {
+                try {
+                    filtering.complete(released ? null : filter(i));
+                } catch (RuntimeException e) {
+                    // Let threads waiting for the tile fail too rather than wait forever
+                    filtering.completeExceptionally(e);
+                    throw e;
+                }
+                // The map may have been released while the tile was filtered
+                if (released) MatScope.release(filtering.join());
+            }
+            tile = tiles.get(i);
+        }
+        Mat edges = tile.join();
+        return released ? null : edges;
+    }
+
+    private Mat filter(int i) {
+        int left = (i % cols) * TILE_SIZE;
+        int top = (i / cols) * TILE_SIZE;
+        int right = Math.min(width, left + TILE_SIZE);
+        int bottom = Math.min(height, top + TILE_SIZE);
+
+        // Decode the tile with its margin, clipped to the image
+        int x0 = Math.max(0, left - MARGIN);
+        int y0 = Math.max(0, top - MARGIN);
+        int x1 = Math.min(width, right + MARGIN);
+        int y1 = Math.min(height, bottom + MARGIN);
+        Mat gray = source.decodeGray(new Rect(x0, y0, x1 - x0, y1 - y0));
+        if (gray == null) return null;
+
+        try (MatScope scope = new MatScope()) {
+            scope.add(gray);
+            Mat edges = scope.add(BoltDetector.findEdges(gray));
+
+            // Decoded sizes can be rounded differently than the region asked for
+            int cropRight = Math.min(right - x0, edges.cols());
+            int cropBottom = Math.min(bottom - y0, edges.rows());
+            Mat tile = MatScope.track(Mat.zeros(bottom - top, right - left, CvType.CV_8UC1));
+            if (cropRight > left - x0 && cropBottom > top - y0) {
+                Mat src = scope.add(edges.submat(top - y0, cropBottom, left - x0, cropRight));
+                Mat dst = scope.add(tile.submat(0, cropBottom - (top - y0), 0,
+                        cropRight - (left - x0)));
+                src.copyTo(dst);
+            }
+            return tile;
+        }
+    }
+}
@@ -1,116 +1,405 @@
 package com.example.routeidentifier;
 
-import android.graphics.Bitmap;
-
-import org.opencv.android.Utils;
 import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.CvException;
 import org.opencv.core.CvType;
-import org.opencv.core.DMatch;
-import org.opencv.core.KeyPoint;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfDMatch;
 import org.opencv.core.MatOfKeyPoint;
 import org.opencv.core.MatOfPoint2f;
-import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
 import org.opencv.features2d.AKAZE;
-import org.opencv.features2d.DescriptorMatcher;
 import org.opencv.imgproc.Imgproc;
+import org.opencv.video.Video;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FeatureDetector {
-    private static AKAZE detector;
-    private static DescriptorMatcher matcher;
+    // Largest dimension of the images used for the coarse and fine homography estimates
+    private static final int COARSE_SIZE = 320;
+    private static final int FINE_SIZE = 500;
+
+    // ECC refinement settings, and the correlation it must reach to replace the coarse estimate
+    private static final int ECC_ITERATIONS = 50;
+    private static final double ECC_EPSILON = 1e-4;
+    private static final double MIN_ECC_CORRELATION = 0.5;
+
+    // RANSAC reprojection threshold in pixels, and OpenCV's default iterations and confidence,
+    // which the Java bindings only accept together with the inlier mask
+    private static final double RANSAC_THRESHOLD = 3;
+    private static final int RANSAC_MAX_ITERS = 2000;
+    private static final double RANSAC_CONFIDENCE = 0.995;
+
+    // How homographies are estimated from the matches: OpenCV's RANSAC samples all matches
+    // uniformly, PROSAC samples the most distinctive matches first
+    public enum Solver { RANSAC, PROSAC }
+
+    // Read by every worker thread, so a change is seen by estimates that start after it
+    private static volatile Solver solver = Solver.PROSAC;
+
+    // OpenCV detectors aren't safe to share between threads, so every thread that uses the
+    // detector gets its own instance, created the first time it's needed and then reused
+    private static final ThreadLocal<AKAZE> detector = ThreadLocal.withInitial(AKAZE::create);
+
+    // Dedicated worker threads for the async API, one per core
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "FeatureDetector-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
-    public FeatureDetector() {
-        detector = AKAZE.create();
-        matcher = DescriptorMatcher.create(DescriptorMatcher.BRUTEFORCE_HAMMING);
+    // Reference features and a gray query image to estimate the homography between
+    public static class HomographyRequest {
+        public final ImageFeatures src;
+        public final Mat query;
+
+        public HomographyRequest(ImageFeatures src, Mat query) {
+            this.src = src;
+            this.query = query;
+        }
     }
 
-    public Mat getHomography(Bitmap src, Bitmap query) {
-        final Mat mat1 = bitmapToGrayMat(src);
-        final Mat mat2 = bitmapToGrayMat(query);
+    public FeatureDetector() {}
 
-        // Get the features and descriptors for the src image
-        final Mat descriptors1 = new Mat();
-        final MatOfKeyPoint keypoints1 = new MatOfKeyPoint();
-        detector.detectAndCompute(mat1, new Mat(), keypoints1, descriptors1);
+    // Set how homographies are estimated
+    public static void setSolver(Solver s) {
+        solver = s;
+    }
 
-        // Get the features and descriptors for the query image
-        final Mat descriptors2 = new Mat();
-        final MatOfKeyPoint keypoints2 = new MatOfKeyPoint();
-        detector.detectAndCompute(mat2, new Mat(), keypoints2, descriptors2);
+    // Executor the async API runs on
+    public static ExecutorService getExecutor() {
+        return executor;
+    }
+
+    // Estimate the homography on the detector's worker threads
+    public CompletableFuture<HomographyResult> getHomographyAsync(ImageFeatures src, Mat query) {
+        return CompletableFuture.supplyAsync(() -> getHomography(src, query), executor);
+    }
+
+    // Estimate the coarse-to-fine homography on the detector's worker threads
+    public CompletableFuture<HomographyResult> getHomographyCoarseToFineAsync(Mat src, Mat query) {
+        return CompletableFuture.supplyAsync(() -> getHomographyCoarseToFine(src, query), executor);
+    }
 
-        // Find the matches between them
-        MatOfPoint2f[] matches = getGoodMatches(matcher, descriptors1, descriptors2, keypoints1, keypoints2);
-        if (matches == null) return null;
+    // Compute the features of an image on the detector's worker threads
+    public CompletableFuture<ImageFeatures> computeFeaturesAsync(Mat gray) {
+        return CompletableFuture.supplyAsync(() -> computeFeatures(gray), executor);
+    }
+
+    // Estimate the homographies of many pairs in parallel. The homographies are returned in the
+    // order of the requests, with null for pairs that couldn't be matched
+    public CompletableFuture<List<HomographyResult>> getHomographyBatch(List<HomographyRequest> requests) {
+        List<CompletableFuture<HomographyResult>> futures = new ArrayList<>();
+        for (HomographyRequest request : requests) {
+            futures.add(getHomographyAsync(request.src, request.query));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<HomographyResult> homographies = new ArrayList<>();
+            for (CompletableFuture<HomographyResult> f : futures) homographies.add(f.join());
+            return homographies;
+        });
+    }
+
+    // Estimate the homography between two gray images
+    public HomographyResult getHomography(Mat src, Mat query) {
+        ImageFeatures features = computeFeatures(src, PipelineMetrics.Stage.DETECT_REFERENCE);
+        try {
+            return getHomography(features, query);
+        } finally {
+            features.release();
+        }
+    }
+
+    // Estimate the homography using features of the src image that were computed ahead of time
+    public HomographyResult getHomography(ImageFeatures src, Mat query) {
+        // Get the features and descriptors for the query image
+        final ImageFeatures features = computeFeatures(query);
 
         // Find the homography matrix between the matches
-        Mat H = Calib3d.findHomography(matches[0], matches[1], Calib3d.RANSAC, 3);
-        return H;
+        try {
+            return findHomography(src, features);
+        } finally {
+            features.release();
+        }
+    }
+
+    // Estimate the homography on heavily downscaled images first, then refine the estimate at a
+    // higher resolution with ECC alignment. Queries are usually taken close to the reference
+    // viewpoint, so the coarse estimate is already a good starting point for the refinement. The
+    // inliers and confidence returned are those of the coarse estimate
+    public HomographyResult getHomographyCoarseToFine(Mat srcGray, Mat queryGray) {
+        double srcCoarse = getScale(srcGray, COARSE_SIZE);
+        ImageFeatures srcFeatures;
+        try (MatScope scope = new MatScope()) {
+            srcFeatures = computeFeatures(resize(scope, srcGray, srcCoarse),
+                    PipelineMetrics.Stage.DETECT_REFERENCE);
+        }
+        try {
+            return coarseToFine(srcFeatures, srcCoarse, srcGray, 1, queryGray);
+        } finally {
+            srcFeatures.release();
+        }
+    }
+
+    // The same with features of the src image that were computed ahead of time, like the ones
+    // stored with reference images, so the coarse estimate only detects features in the query.
+    // Features are matched by their descriptors, so they can be from the full size src image. The
+    // gray src image is only used for the refinement, so it can be the one getRefinementImage
+    // makes. The homography is in the coordinates of the image the features are from
+    public HomographyResult getHomographyCoarseToFine(ImageFeatures src, Mat srcGray,
+                                                      Mat queryGray) {
+        return coarseToFine(src, 1, srcGray, (double) srcGray.cols() / src.width, queryGray);
+    }
+
+    // Copy of the gray image at the size coarse-to-fine estimates refine at, which is all of the
+    // image they need besides its features, so it can be kept instead of the image. It's tracked
+    // by MatScope and has to be released by the caller
+    public static Mat getRefinementImage(Mat gray) {
+        Mat fine = MatScope.track(new Mat());
+        double scale = getScale(gray, FINE_SIZE);
+        if (scale == 1.0) gray.copyTo(fine);
+        else Imgproc.resize(gray, fine, new Size(), scale, scale, Imgproc.INTER_AREA);
+        return fine;
     }
 
-    // Convert the bitmap to a gray OpenCV Mat
-    public Mat bitmapToGrayMat(Bitmap bitmap) {
-        final Mat mat = new Mat(bitmap.getWidth(), bitmap.getHeight(), CvType.CV_8UC4);
-        Utils.bitmapToMat(bitmap, mat);
-        Imgproc.cvtColor(mat, mat, Imgproc.COLOR_RGBA2GRAY);
-        return mat;
+    // Coarse-to-fine estimate from the src features, which are from the src image scaled by
+    // featureScale, and the gray src image scaled by srcScale. The homography is in the
+    // coordinates of the src image
+    private HomographyResult coarseToFine(ImageFeatures srcFeatures, double featureScale,
+                                          Mat srcGray, double srcScale, Mat queryGray) {
+        try (MatScope scope = new MatScope()) {
+            // Estimate the homography between the coarse images
+            double queryCoarse = getScale(queryGray, COARSE_SIZE);
+            ImageFeatures queryFeatures = computeFeatures(resize(scope, queryGray, queryCoarse));
+            HomographyResult coarse = findHomography(srcFeatures, queryFeatures);
+            queryFeatures.release();
+            if (coarse == null) return null;
+            scope.add(coarse.H);
+            Mat H = scope.add(scaleHomography(coarse.H, 1 / featureScale, 1 / queryCoarse));
+
+            // Refine it by aligning the finer images, starting from the coarse estimate
+            double srcResize = getScale(srcGray, FINE_SIZE);
+            double srcFine = srcScale * srcResize;
+            double queryFine = getScale(queryGray, FINE_SIZE);
+            Mat warp = scope.mat();
+            scope.add(scaleHomography(H, srcFine, queryFine)).convertTo(warp, CvType.CV_32F);
+            try {
+                TermCriteria criteria = new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS,
+                        ECC_ITERATIONS, ECC_EPSILON);
+                double correlation = Video.findTransformECC(resize(scope, srcGray, srcResize),
+                        resize(scope, queryGray, queryFine), warp, Video.MOTION_HOMOGRAPHY, criteria,
+                        scope.mat());
+                if (correlation < MIN_ECC_CORRELATION) return withH(coarse, scope.keep(H));
+            } catch (CvException e) {
+                // ECC didn't converge, so keep the coarse estimate
+                return withH(coarse, scope.keep(H));
+            }
+
+            Mat refined = scope.mat();
+            warp.convertTo(refined, CvType.CV_64F);
+            return withH(coarse, scaleHomography(refined, 1 / srcFine, 1 / queryFine));
+        }
+    }
+
+    private static HomographyResult withH(HomographyResult result, Mat H) {
+        return new HomographyResult(H, result.mask, result.inliers, result.confidence,
+                result.iterations);
+    }
+
+    // Estimate the homography between the src and query features. Return null if there are too
+    // few matches to estimate it
+    static HomographyResult findHomography(ImageFeatures src, ImageFeatures query) {
+        return solve(getGoodMatches(src, query));
+    }
+
+    // Estimate the homography from the src to the query points of the matches with the current
+    // solver. Return null if there are too few matches or no homography was found
+    static HomographyResult solve(Matches matches) {
+        if (matches == null || matches.size < 4) return null;
+        long start = PipelineMetrics.start(PipelineMetrics.Stage.RANSAC);
+        HomographyResult result;
+        if (solver == Solver.PROSAC) {
+            // Solvers keep their own random state, so every estimate gets a new one
+            result = new ProsacSolver(RANSAC_THRESHOLD, RANSAC_MAX_ITERS, RANSAC_CONFIDENCE, 0)
+                    .solve(matches);
+        } else {
+            result = solveRansac(matches);
+        }
+        PipelineMetrics.stop(PipelineMetrics.Stage.RANSAC, start);
+        if (result != null) {
+            PipelineMetrics.count(PipelineMetrics.Counter.RANSAC_ITERATIONS, result.iterations);
+            PipelineMetrics.count(PipelineMetrics.Counter.RANSAC_INLIERS, result.inliers);
+        }
+        return result;
+    }
+
+    private static HomographyResult solveRansac(Matches matches) {
+        try (MatScope scope = new MatScope()) {
+            Mat mask = scope.mat();
+            Mat H = ransac(scope.add(matches.srcMat()), scope.add(matches.dstMat()), mask);
+            if (H == null) return null;
+
+            // OpenCV doesn't report its iterations, but it stops once the inlier ratio gives the
+            // required confidence, so they follow from the number of inliers. The confidence is
+            // then the one OpenCV stopped at rather than evidence of its own, and only means
+            // something together with the number of inliers
+            byte[] inlierMask = new byte[matches.size];
+            mask.get(0, 0, inlierMask);
+            int inliers = Core.countNonZero(mask);
+            int iterations = HomographyResult.requiredIterations(inliers, matches.size, 4,
+                    RANSAC_CONFIDENCE, RANSAC_MAX_ITERS);
+            double confidence = HomographyResult.confidence(inliers, matches.size, 4, iterations);
+            return new HomographyResult(H, inlierMask, inliers, confidence, iterations);
+        }
+    }
+
+    // Estimate the homography between matched points with RANSAC, storing which matches are
+    // inliers in the mask. Return null if no homography was found. The homography is tracked by
+    // MatScope and has to be released by the caller
+    static Mat ransac(MatOfPoint2f src, MatOfPoint2f dst, Mat mask) {
+        Mat H = Calib3d.findHomography(src, dst, Calib3d.RANSAC, RANSAC_THRESHOLD, mask,
+                RANSAC_MAX_ITERS, RANSAC_CONFIDENCE);
+        if (H.empty()) {
+            H.release();
+            return null;
+        }
+        return MatScope.track(H);
+    }
+
+    // Get the features and descriptors for a gray query image. They have to be released by the
+    // caller once they're no longer needed
+    public ImageFeatures computeFeatures(Mat gray) {
+        return computeFeatures(gray, PipelineMetrics.Stage.DETECT_QUERY);
+    }
+
+    // Get the features of a gray image, timing them as the given detect stage, which tells
+    // reference images apart from queries
+    public ImageFeatures computeFeatures(Mat gray, PipelineMetrics.Stage stage) {
+        long start = PipelineMetrics.start(stage);
+        try (MatScope scope = new MatScope()) {
+            final Mat descriptors = MatScope.track(new Mat());
+            final MatOfKeyPoint keypoints = MatScope.track(new MatOfKeyPoint());
+            detector.get().detectAndCompute(gray, scope.mat(), keypoints, descriptors);
+            return new ImageFeatures(keypoints, descriptors, gray.cols(), gray.rows());
+        } finally {
+            PipelineMetrics.stop(stage, start);
+        }
+    }
+
+    // Scale factor that fits the image within size pixels, never upscaling
+    private static double getScale(Mat mat, int size) {
+        return Math.min(1.0, (double) size / Math.max(mat.cols(), mat.rows()));
+    }
+
+    // Resize an image, owning the resized copy in the scope. The image itself is returned if the
+    // scale is 1
+    private static Mat resize(MatScope scope, Mat mat, double scale) {
+        if (scale == 1.0) return mat;
+        Mat resized = scope.mat();
+        Imgproc.resize(mat, resized, new Size(), scale, scale, Imgproc.INTER_AREA);
+        return resized;
+    }
+
+    // Convert a homography between two images into one between the images scaled by srcScale
+    // and queryScale. The result is tracked by MatScope and has to be released by the caller
+    private static Mat scaleHomography(Mat H, double srcScale, double queryScale) {
+        try (MatScope scope = new MatScope()) {
+            Mat srcInv = scope.add(Mat.eye(3, 3, CvType.CV_64F));
+            srcInv.put(0, 0, 1 / srcScale);
+            srcInv.put(1, 1, 1 / srcScale);
+            Mat query = scope.add(Mat.eye(3, 3, CvType.CV_64F));
+            query.put(0, 0, queryScale);
+            query.put(1, 1, queryScale);
+
+            Mat right = scope.mat();
+            Mat scaled = MatScope.track(new Mat());
+            Core.gemm(H, srcInv, 1, scope.mat(), 0, right);
+            Core.gemm(query, right, 1, scope.mat(), 0, scaled);
+            return scaled;
+        }
     }
 
-    // Get the points associated with the feature matches between the two sets of keypoints and
-    // descriptors. Return null if no such matches exist
-    private static MatOfPoint2f[] getGoodMatches(DescriptorMatcher matcher, Mat descriptors1, Mat descriptors2,
-                                          MatOfKeyPoint keypoints1, MatOfKeyPoint keypoints2) {
+    // Get the points associated with the feature matches between the src and query keypoints,
+    // matching the query against the matcher built on the src descriptors. Return null if no such
+    // matches exist. Matches, keypoints and points are kept in primitive arrays read from the
+    // native Mats in bulk, so nothing is allocated per match
+    static Matches getGoodMatches(ImageFeatures src, ImageFeatures query) {
 
         // Make sure descriptors aren't empty
-        if (descriptors1.empty() || descriptors2.empty()) return null;
+        if (src.descriptors.empty() || query.descriptors.empty()) return null;
 
-        // Match the features between the two images
-        List<MatOfDMatch> knnMatches = new ArrayList<>();
-        matcher.knnMatch(descriptors1, descriptors2, knnMatches, 2);
+        // Find the two nearest src features of every query feature
+        int nQuery = query.size();
+        int[] nearest = new int[nQuery];
+        int[] nearestDist = new int[nQuery];
+        int[] secondDist = new int[nQuery];
+        HammingMatcher matcher = src.getMatcher();
+        long start = PipelineMetrics.start(PipelineMetrics.Stage.MATCH);
+        matcher.knnMatch2(query.descriptors, nearest, nearestDist, secondDist);
+        Matches matches = ratioTest(src, query, nearest, nearestDist, secondDist);
+        PipelineMetrics.stop(PipelineMetrics.Stage.MATCH, start);
+        PipelineMetrics.count(PipelineMetrics.Counter.MATCHES, nQuery);
+        PipelineMetrics.count(PipelineMetrics.Counter.RATIO_SURVIVORS,
+                matches == null ? 0 : matches.size);
+        return matches;
+    }
+
+    // Get the points of the matches whose nearest src feature is clearly closer than the second
+    // nearest one, or null if there are none. The matches are sorted by their distance ratio, so
+    // the most distinctive come first
+    static Matches ratioTest(ImageFeatures src, ImageFeatures query,
+                             int[] nearest, int[] nearestDist, int[] secondDist) {
+        int nQuery = query.size();
 
-        // Convert keypoints to list
-        List<KeyPoint> listOfKeypoints1 = keypoints1.toList();
-        List<KeyPoint> listOfKeypoints2 = keypoints2.toList();
+        // Get the keypoint locations as x, y pairs
+        float[] srcXY = src.getPoints();
+        float[] queryXY = query.getPoints();
 
-        // Find the good matches
+        // Keep the matches that pass the ratio test. Each is packed into a long with the bits of
+        // its ratio on top, which sort like the ratio itself since it's positive, so the matches
+        // can be sorted without boxing them
         float ratioThresh = 0.8f;
-        List<DMatch> listOfGoodMatches = new ArrayList<>();
-        List<KeyPoint> listOfMatched1 = new ArrayList<>();
-        List<KeyPoint> listOfMatched2 = new ArrayList<>();
-        for (int i = 0; i < knnMatches.size(); i++) {
-            if (knnMatches.get(i).rows() > 1) {
-                DMatch[] matches = knnMatches.get(i).toArray();
-                float dist1 = matches[0].distance;
-                float dist2 = matches[1].distance;
-                if (dist1 < ratioThresh * dist2) {
-                    listOfGoodMatches.add(matches[0]);
-                    listOfMatched1.add(listOfKeypoints1.get(matches[0].queryIdx));
-                    listOfMatched2.add(listOfKeypoints2.get(matches[0].trainIdx));
-                }
+        long[] order = new long[nQuery];
+        int n = 0;
+        for (int i = 0; i < nQuery; i++) {
+            if (secondDist[i] == HammingMatcher.NO_MATCH) continue;
+            if (nearestDist[i] < ratioThresh * secondDist[i]) {
+                float ratio = (float) nearestDist[i] / secondDist[i];
+                order[n++] = ((long) Float.floatToIntBits(ratio) << 32) | i;
             }
         }
-        MatOfDMatch goodMatches = new MatOfDMatch();
-        goodMatches.fromList(listOfGoodMatches);
 
         // Return null if there are no good matches
-        int n = listOfMatched1.size();
         if (n == 0) return null;
+        Arrays.sort(order, 0, n);
 
-        // Find the points of good matches
-        MatOfPoint2f src = new MatOfPoint2f();
-        MatOfPoint2f dest = new MatOfPoint2f();
-        List<Point> points1 = new ArrayList<>();
-        List<Point> points2 = new ArrayList<>();
-        for (int i = 0; i < n; i++) {
-            points1.add(listOfMatched1.get(i).pt);
-            points2.add(listOfMatched2.get(i).pt);
+        // Write out the points of the good matches, best first
+        float[] srcPoints = new float[n * 2];
+        float[] destPoints = new float[n * 2];
+        float[] ratios = new float[n];
+        for (int k = 0; k < n; k++) {
+            int i = (int) order[k];
+            int j = nearest[i];
+            srcPoints[k * 2] = srcXY[j * 2];
+            srcPoints[k * 2 + 1] = srcXY[j * 2 + 1];
+            destPoints[k * 2] = queryXY[i * 2];
+            destPoints[k * 2 + 1] = queryXY[i * 2 + 1];
+            ratios[k] = Float.intBitsToFloat((int) (order[k] >>> 32));
         }
-        src.fromList(points1);
-        dest.fromList(points2);
-
-        return new MatOfPoint2f[]{src, dest};
+        return new Matches(srcPoints, destPoints, ratios, n);
     }
 }
@@ -0,0 +1,20 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.Mat;
+
+// Finds the two nearest neighbours of binary descriptors among a fixed set of training
+// descriptors. The training side is indexed once when the matcher is built, so the matcher of a
+// reference image can be reused for every query matched against it.
+public interface HammingMatcher {
+    // Value stored as the distance when a neighbour wasn't found
+    int NO_MATCH = Integer.MAX_VALUE;
+
+    // For every query descriptor (one per row), store the index of its nearest training descriptor,
+    // the distance to it and the distance to the second nearest training descriptor
+    void knnMatch2(Mat queryDescriptors, int[] nearest, int[] nearestDist, int[] secondDist);
+
+    // Builds a matcher for a set of training descriptors
+    interface Factory {
+        HammingMatcher create(Mat trainDescriptors);
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.Mat;
+
+// A homography estimated from feature matches, with how well the matches support it
+public class HomographyResult {
+    public final Mat H;
+    // Which matches are inliers of H, in the order of the matches, and how many there are
+    public final byte[] mask;
+    public final int inliers;
+    // Probability that the solver drew at least one sample of only inliers, given the inlier
+    // ratio it found among the matches it drew them from. Low values mean H is likely to be
+    // wrong, but high ones don't mean it's right, since the ratio is measured against H itself.
+    // Check the number of inliers too
+    public final double confidence;
+    public final int iterations;
+
+    HomographyResult(Mat H, byte[] mask, int inliers, double confidence, int iterations) {
+        this.H = H;
+        this.mask = mask;
+        this.inliers = inliers;
+        this.confidence = confidence;
+        this.iterations = iterations;
+    }
+
+    // Release the homography
+    public void release() {
+        MatScope.release(H);
+    }
+
+    // Number of samples needed to draw one of only inliers with the given confidence
+    static int requiredIterations(int inliers, int n, int sampleSize, double confidence, int max) {
+        double allInliers = Math.pow((double) inliers / n, sampleSize);
+        if (allInliers >= 1) return 0;
+        if (allInliers <= 0) return max;
+        double k = Math.log(1 - confidence) / Math.log(1 - allInliers);
+        return (int) Math.min(max, Math.ceil(k));
+    }
+
+    // Probability of having drawn at least one sample of only inliers in the given iterations
+    static double confidence(int inliers, int n, int sampleSize, int iterations) {
+        double allInliers = Math.pow((double) inliers / n, sampleSize);
+        return 1 - Math.pow(1 - allInliers, iterations);
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Keypoints and descriptors of an image. Reference images have their features computed once when
+// the route is uploaded and stored next to the image, so identification only has to compute the
+// features of the query image.
+public class ImageFeatures {
+    // Header of the binary format: magic, version, width, height, count, descriptor cols, type
+    private static final int MAGIC = 0x52494631; // "RIF1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 7 * 4;
+
+    public final MatOfKeyPoint keypoints;
+    public final Mat descriptors;
+    public final int width;
+    public final int height;
+
+    // Matcher built on the descriptors, created the first time these features are matched against
+    private static volatile HammingMatcher.Factory matcherFactory = LshHammingMatcher::new;
+    private HammingMatcher matcher;
+    private float[] points;
+
+    public ImageFeatures(MatOfKeyPoint keypoints, Mat descriptors, int width, int height) {
+        this.keypoints = keypoints;
+        this.descriptors = descriptors;
+        this.width = width;
+        this.height = height;
+    }
+
+    // Number of keypoints in the image
+    public int size() {
+        return (int) keypoints.total();
+    }
+
+    // Get the keypoint locations as consecutive x, y pairs, reading them from the keypoints once
+    public synchronized float[] getPoints() {
+        if (points == null) {
+            int n = size();
+            float[] kp = new float[n * 7];
+            if (n > 0) keypoints.get(0, 0, kp);
+            points = new float[n * 2];
+            for (int i = 0; i < n; i++) {
+                points[i * 2] = kp[i * 7];
+                points[i * 2 + 1] = kp[i * 7 + 1];
+            }
+        }
+        return points;
+    }
+
+    // Release the keypoints and descriptors. The features can't be matched against afterwards
+    public void release() {
+        MatScope.release(keypoints, descriptors);
+    }
+
+    // Set how matchers are built for the features. Matchers that were already built are kept
+    public static void setMatcherFactory(HammingMatcher.Factory factory) {
+        matcherFactory = factory;
+    }
+
+    // Get the matcher that finds the nearest of these descriptors to a query, building it once
+    public synchronized HammingMatcher getMatcher() {
+        if (matcher == null) matcher = matcherFactory.create(descriptors);
+        return matcher;
+    }
+
+    // Serialize the features into a compact binary form. Only the keypoint locations are kept,
+    // since they are all that is needed to estimate a homography.
+    public byte[] toBytes() {
+        int n = size();
+        int cols = descriptors.empty() ? 0 : descriptors.cols();
+        int type = descriptors.empty() ? CvType.CV_8U : descriptors.type();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + n * 2 * 4 + n * cols)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height)
+                .putInt(n).putInt(cols).putInt(type);
+
+        // Keypoints are stored as their locations
+        for (float f : getPoints()) buffer.putFloat(f);
+
+        // Binary descriptors are stored row by row
+        if (n > 0 && cols > 0) {
+            byte[] desc = new byte[n * cols];
+            descriptors.get(0, 0, desc);
+            buffer.put(desc);
+        }
+        return buffer.array();
+    }
+
+    // Read features that were serialized with toBytes
+    public static ImageFeatures fromBytes(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IllegalArgumentException("Unrecognized image features format");
+        }
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        int n = buffer.getInt();
+        int cols = buffer.getInt();
+        int type = buffer.getInt();
+
+        // Rebuild the keypoints from their locations
+        MatOfKeyPoint keypoints = MatScope.track(new MatOfKeyPoint());
+        if (n > 0) {
+            float[] kp = new float[n * 7];
+            for (int i = 0; i < n; i++) {
+                kp[i * 7] = buffer.getFloat();
+                kp[i * 7 + 1] = buffer.getFloat();
+                kp[i * 7 + 6] = -1; // class id
+            }
+            keypoints.alloc(n);
+            keypoints.put(0, 0, kp);
+        }
+
+        // Rebuild the descriptors
+        Mat descriptors;
+        if (n > 0 && cols > 0) {
+            byte[] desc = new byte[n * cols];
+            buffer.get(desc);
+            descriptors = new Mat(n, cols, type);
+            descriptors.put(0, 0, desc);
+        } else {
+            descriptors = new Mat();
+        }
+        MatScope.track(descriptors);
+        return new ImageFeatures(keypoints, descriptors, width, height);
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.routeidentifier;
+
+import android.graphics.Bitmap;
+
+import org.opencv.android.Utils;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+// Converts Android images into the gray Mats the vision code works on. This is the only place the
+// matching pipeline touches Android types, so everything after it can also run on a desktop JVM.
+//
+// Identification and bolt measurement both convert through toGray(). The bitmap's pixels are
+// copied once into a color staging buffer from MatPool, since the OpenCV bindings can't wrap
+// them, and converted from there straight into the gray result, so no full size buffer is
+// allocated per call. The gray result comes from MatPool too, so it's counted by MatScope and
+// should be handed back with MatPool.recycle() once it's used. Passing the result Mat back in
+// reuses it, or writes into a submat of a larger image in place
+public class ImagePreprocessor {
+    private ImagePreprocessor() {}
+
+    // Convert the bitmap to a gray OpenCV Mat
+    public static Mat toGray(Bitmap bitmap) {
+        return toGray(bitmap, 1.0);
+    }
+
+    // Convert the bitmap to a gray OpenCV Mat downscaled by scale, which is at most 1. Recycle it
+    // with MatPool.recycle() once it's no longer needed
+    public static Mat toGray(Bitmap bitmap, double scale) {
+        Size size = grayedSize(bitmap, scale);
+        Mat gray = MatPool.acquire((int) size.height, (int) size.width, CvType.CV_8UC1);
+        toGray(bitmap, scale, gray);
+        return gray;
+    }
+
+    // Convert the bitmap to gray downscaled by scale into gray. Its buffer is reused if it's
+    // already the size of the result, so a submat of that size is written in place
+    public static void toGray(Bitmap bitmap, double scale, Mat gray) {
+        long start = PipelineMetrics.start(PipelineMetrics.Stage.GRAY);
+        int w = bitmap.getWidth(), h = bitmap.getHeight();
+        Mat rgba = MatPool.acquire(h, w, CvType.CV_8UC4);
+        Utils.bitmapToMat(bitmap, rgba);
+        if (scale >= 1.0) {
+            Imgproc.cvtColor(rgba, gray, Imgproc.COLOR_RGBA2GRAY);
+        } else {
+            // Shrink the single gray channel rather than the four color ones
+            Mat full = MatPool.acquire(h, w, CvType.CV_8UC1);
+            Imgproc.cvtColor(rgba, full, Imgproc.COLOR_RGBA2GRAY);
+            Imgproc.resize(full, gray, grayedSize(bitmap, scale), 0, 0, Imgproc.INTER_AREA);
+            MatPool.recycle(full);
+        }
+        MatPool.recycle(rgba);
+        PipelineMetrics.stop(PipelineMetrics.Stage.GRAY, start);
+    }
+
+    // Size of the gray image of the bitmap downscaled by scale
+    private static Size grayedSize(Bitmap bitmap, double scale) {
+        if (scale >= 1.0) return new Size(bitmap.getWidth(), bitmap.getHeight());
+        return new Size(Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                Math.max(1, Math.round(bitmap.getHeight() * scale)));
+    }
+}
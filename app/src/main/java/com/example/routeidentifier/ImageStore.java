@@ -0,0 +1,190 @@
+package com.example.routeidentifier;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.google.android.gms.tasks.Task;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+
+import org.bson.BsonBinary;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.example.routeidentifier.StartActivity.image_blob_coll;
+import static com.example.routeidentifier.StartActivity.image_coll;
+
+// Route images in the database, kept apart from their image documents. An image document holds
+// the route's points and features, and is keyed by the route's name, so it's found by _id. The
+// image itself is stored as JPEG at the resolution it's matched at, split into chunks in the image
+// blob collection, keyed by the route's name, the resolution and the chunk's number, and the image
+// document only records its size. Identifying a route then only downloads its image document, and
+// the image if the matcher needs it. Routes are only ever shown drawn onto the user's own photo,
+// so no other resolution is stored until something shows the route's image itself; adding one
+// to Resolution stores it alongside.
+//
+// Image documents uploaded before this keep their image as PNG in the document and their _id is
+// an ObjectId. They're found by name once no document has the name as its _id, and their image
+// is downloaded on its own when it's needed, so metadata queries never download image bytes
+public final class ImageStore {
+    public enum Resolution {
+        // The size routes are drawn and matched at, which their points and features are in
+        MATCH("match", 750);
+
+        public final String key;
+        // Longest side in pixels
+        public final int maxSize;
+
+        Resolution(String key, int maxSize) {
+            this.key = key;
+            this.maxSize = maxSize;
+        }
+    }
+
+    // Chunks are small enough that inserting many of them doesn't hit request size limits
+    private static final int CHUNK_SIZE = 255 * 1024;
+    private static final int JPEG_QUALITY = 90;
+    // Leaves out the image bytes of older image documents
+    private static final Bson METADATA = Projections.exclude("image");
+    // Completes futures off the UI thread, so they can be waited on anywhere but there
+    private static final Executor callbacks = ForkJoinPool.commonPool();
+
+    private ImageStore() {}
+
+    // Store the image at every resolution, then its image document. The image must already be at
+    // the match resolution, and is scaled down from there for any smaller one
+    public static CompletableFuture<Void> insert(Document metadata, Bitmap match) {
+        String name = metadata.getString("name");
+        metadata.put("_id", name);
+        Document images = new Document();
+        List<Document> chunks = new ArrayList<>();
+        for (Resolution resolution : Resolution.values()) {
+            Bitmap bitmap = scale(match, resolution);
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, stream);
+            byte[] bytes = stream.toByteArray();
+
+            int count = (bytes.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            for (int i = 0; i < count; i++) {
+                byte[] data = Arrays.copyOfRange(bytes, i * CHUNK_SIZE,
+                        Math.min(bytes.length, (i + 1) * CHUNK_SIZE));
+                chunks.add(new Document("_id", getChunkId(name, resolution, i))
+                        .append("data", new BsonBinary(data)));
+            }
+            images.append(resolution.key, new Document("width", bitmap.getWidth())
+                    .append("height", bitmap.getHeight())
+                    .append("chunks", count)
+                    .append("bytes", bytes.length));
+        }
+        metadata.append("images", images);
+
+        // Insert the image document last, so it's never found without its images
+        return toFuture(image_blob_coll.insertMany(chunks))
+                .thenCompose(result -> toFuture(image_coll.insertOne(metadata)))
+                .thenApply(result -> null);
+    }
+
+    // Image document of the route, without image bytes, or null if there is none
+    public static CompletableFuture<Document> findMetadata(String name) {
+        List<String> names = new ArrayList<>();
+        names.add(name);
+        return findMetadata(names).thenApply(docs -> docs.isEmpty() ? null : docs.get(0));
+    }
+
+    // Image documents of the routes that have one, without image bytes
+    public static CompletableFuture<ArrayList<Document>> findMetadata(Collection<String> names) {
+        return toFuture(image_coll.find(Filters.in("_id", names)).projection(METADATA)
+                .into(new ArrayList<>())).thenCompose(docs -> {
+            // Look up older documents by name, only for the routes that weren't found
+            Set<String> missing = new HashSet<>(names);
+            for (Document d : docs) missing.remove(d.getString("name"));
+            if (missing.isEmpty()) return CompletableFuture.completedFuture(docs);
+            return toFuture(image_coll.find(Filters.in("name", missing)).projection(METADATA)
+                    .into(docs));
+        });
+    }
+
+    // The route's image at the resolution. Older documents only have one, which is returned
+    // whatever the resolution
+    public static CompletableFuture<Bitmap> getImage(Document metadata, Resolution resolution) {
+        Document images = (Document) metadata.get("images");
+        if (images == null) {
+            return toFuture(image_coll.find(Filters.eq("_id", metadata.get("_id")))
+                    .projection(Projections.include("image")).first())
+                    .thenApplyAsync(doc -> decode(((Binary) doc.get("image")).getData()));
+        }
+
+        String name = metadata.getString("name");
+        int count = ((Document) images.get(resolution.key)).getInteger("chunks");
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) ids.add(getChunkId(name, resolution, i));
+        return toFuture(image_blob_coll.find(Filters.in("_id", ids)).into(new ArrayList<>()))
+                .thenApplyAsync(chunks -> {
+                    // Join the chunks in order, whatever order they came in
+                    byte[][] parts = new byte[count][];
+                    int length = 0;
+                    for (Document chunk : chunks) {
+                        byte[] data = ((Binary) chunk.get("data")).getData();
+                        parts[ids.indexOf(chunk.getString("_id"))] = data;
+                        length += data.length;
+                    }
+                    byte[] bytes = new byte[length];
+                    int offset = 0;
+                    for (byte[] part : parts) {
+                        if (part == null) throw new IllegalStateException("Missing image chunk");
+                        System.arraycopy(part, 0, bytes, offset, part.length);
+                        offset += part.length;
+                    }
+                    return decode(bytes);
+                });
+    }
+
+    // Width and height of the route's image at the resolution. Older documents don't record them,
+    // so their image is downloaded
+    public static CompletableFuture<int[]> getSize(Document metadata, Resolution resolution) {
+        Document images = (Document) metadata.get("images");
+        if (images == null) {
+            return getImage(metadata, resolution)
+                    .thenApply(bitmap -> new int[]{bitmap.getWidth(), bitmap.getHeight()});
+        }
+        Document image = (Document) images.get(resolution.key);
+        return CompletableFuture.completedFuture(
+                new int[]{image.getInteger("width"), image.getInteger("height")});
+    }
+
+    // The bitmap scaled down so its longest side is at most the resolution's
+    public static Bitmap scale(Bitmap bitmap, Resolution resolution) {
+        int w = bitmap.getWidth(), h = bitmap.getHeight();
+        float scale = (float) resolution.maxSize / Math.max(w, h);
+        if (scale >= 1) return bitmap;
+        return Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(w * scale)),
+                Math.max(1, Math.round(h * scale)), true);
+    }
+
+    private static String getChunkId(String name, Resolution resolution, int i) {
+        return name + "/" + resolution.key + "/" + i;
+    }
+
+    private static Bitmap decode(byte[] bytes) {
+        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+    }
+
+    private static <T> CompletableFuture<T> toFuture(Task<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        task.addOnSuccessListener(callbacks, future::complete)
+                .addOnFailureListener(callbacks, future::completeExceptionally);
+        return future;
+    }
+}
@@ -0,0 +1,236 @@
+package com.example.routeidentifier;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.cameraview.Frame;
+import com.otaliastudios.cameraview.FrameProcessor;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.video.Video;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+// Identifies the route in camera preview frames. The route is identified with feature matching
+// once, and its inlier points are then tracked from frame to frame with pyramidal Lucas-Kanade
+// optical flow to update the homography. Feature matching only runs again once tracking is lost.
+// Frames are only matched against the routes whose features are already loaded, so the frame
+// thread never waits for a download.
+public class LiveRouteTracker implements FrameProcessor {
+    // Largest dimension of the frames used for identification and tracking
+    private static final int FRAME_SIZE = 640;
+
+    // Tracking is lost once fewer points than this survive, or too few of the original inliers
+    private static final int MIN_TRACKED_POINTS = 12;
+    private static final double MIN_TRACKED_FRACTION = 0.4;
+
+    // Lucas-Kanade window size and number of pyramid levels
+    private static final Size LK_WINDOW = new Size(21, 21);
+    private static final int LK_LEVELS = 3;
+
+    // Called on the frame processing thread with the homography from the reference image of the
+    // route to the frame, and the size and rotation of the frame it maps into. The homography is
+    // released once the listener returns
+    public interface Listener {
+        void onRouteTracked(String name, ImageFeatures reference, Mat H, int width, int height,
+                            int rotation);
+        void onRouteLost();
+    }
+
+    private final FeatureDetector detector;
+    private final RouteRanker ranker;
+    // Features of the routes to match a frame with the given features against, or null if they
+    // aren't loaded yet. It's called on the frame processing thread, so it mustn't block
+    private final Function<ImageFeatures, Map<String, ImageFeatures>> candidates;
+    private final Listener listener;
+
+    // State of the route being tracked
+    private volatile String name;
+    private ImageFeatures reference;
+    private Mat prevGray;
+    private float[] refPoints;
+    private float[] framePoints;
+    private int initialCount;
+
+    public LiveRouteTracker(RouteRanker ranker,
+                            Function<ImageFeatures, Map<String, ImageFeatures>> candidates,
+                            Listener listener) {
+        this.detector = new FeatureDetector();
+        this.ranker = ranker;
+        this.candidates = candidates;
+        this.listener = listener;
+    }
+
+    // Frames are processed one at a time, and stop() waits for the one being processed
+    @Override
+    public synchronized void process(@NonNull Frame frame) {
+        byte[] data = frame.getData();
+        if (data == null) return;
+        int w = frame.getSize().getWidth();
+        int h = frame.getSize().getHeight();
+
+        // The luma plane at the start of an NV21 frame is already a gray image
+        long grayStart = PipelineMetrics.start(PipelineMetrics.Stage.GRAY);
+        Mat gray = MatScope.track(new Mat(h, w, CvType.CV_8UC1));
+        gray.put(0, 0, data, 0, w * h);
+        double scale = Math.min(1.0, (double) FRAME_SIZE / Math.max(w, h));
+        if (scale < 1.0) {
+            Imgproc.resize(gray, gray, new Size(), scale, scale, Imgproc.INTER_AREA);
+        }
+        PipelineMetrics.stop(PipelineMetrics.Stage.GRAY, grayStart);
+
+        // Track the route if it was found in an earlier frame, otherwise identify it again
+        Mat H = (name != null) ? track(gray) : identify(gray);
+        MatScope.release(prevGray);
+        prevGray = gray;
+        if (H == null) {
+            listener.onRouteLost();
+            return;
+        }
+        listener.onRouteTracked(name, reference, H, gray.cols(), gray.rows(), frame.getRotation());
+        MatScope.release(H);
+    }
+
+    // Forget the tracked route so the next frame is identified from scratch
+    public void reset() {
+        name = null;
+    }
+
+    // Forget the tracked route and release the last frame, once the tracker has been removed from
+    // the camera and gets no more frames
+    public synchronized void stop() {
+        name = null;
+        MatScope.release(prevGray);
+        prevGray = null;
+    }
+
+    // Find the route in the frame with feature matching, keeping its inliers to track
+    private Mat identify(Mat gray) {
+        ImageFeatures query = detector.computeFeatures(gray);
+        try {
+            Map<String, ImageFeatures> routes = candidates.apply(query);
+            if (routes == null || routes.isEmpty()) return null;
+            return identify(routes, query);
+        } finally {
+            query.release();
+        }
+    }
+
+    private Mat identify(Map<String, ImageFeatures> routes, ImageFeatures query) {
+        // Pick the best route if there is more than one candidate
+        String best = routes.keySet().iterator().next();
+        if (routes.size() > 1) {
+            try {
+                List<RouteRanker.Result> ranked = ranker.rank(routes, query);
+                RouteRanker.release(ranked);
+                if (ranked.isEmpty()) return null;
+                best = ranked.get(0).name;
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+
+        // Estimate the homography and keep the point pairs of its inliers
+        Matches matches = FeatureDetector.getGoodMatches(routes.get(best), query);
+        if (matches == null || matches.size < MIN_TRACKED_POINTS) return null;
+        HomographyResult result = FeatureDetector.solve(matches);
+        if (result == null) return null;
+
+        float[] src = Arrays.copyOf(matches.src, matches.size * 2);
+        float[] dst = Arrays.copyOf(matches.dst, matches.size * 2);
+        int count = keep(result.mask, src, dst);
+        if (count < MIN_TRACKED_POINTS) {
+            result.release();
+            return null;
+        }
+
+        name = best;
+        reference = routes.get(best);
+        refPoints = src;
+        framePoints = dst;
+        initialCount = count;
+        return result.H;
+    }
+
+    // Follow the inlier points into the new frame and update the homography from them
+    private Mat track(Mat gray) {
+        try (MatScope scope = new MatScope()) {
+            return track(scope, gray);
+        }
+    }
+
+    private Mat track(MatScope scope, Mat gray) {
+        int n = framePoints.length / 2;
+        MatOfPoint2f prev = scope.add(toMat(framePoints, n));
+        MatOfPoint2f next = scope.add(new MatOfPoint2f());
+        MatOfByte status = scope.add(new MatOfByte());
+        MatOfFloat err = scope.add(new MatOfFloat());
+        Video.calcOpticalFlowPyrLK(prevGray, gray, prev, next, status, err, LK_WINDOW, LK_LEVELS);
+
+        // Keep the points that were found in the new frame
+        float[] src = refPoints;
+        float[] dst = new float[n * 2];
+        byte[] tracked = new byte[n];
+        next.get(0, 0, dst);
+        status.get(0, 0, tracked);
+        int count = keep(tracked, src, dst);
+        if (isLost(count)) return null;
+
+        // Update the homography and drop the points that no longer agree with it
+        Mat mask = scope.mat();
+        Mat H = FeatureDetector.ransac(scope.add(toMat(src, count)), scope.add(toMat(dst, count)),
+                mask);
+        if (H == null) {
+            name = null;
+            return null;
+        }
+        byte[] inliers = new byte[count];
+        mask.get(0, 0, inliers);
+        count = keep(inliers, src, dst);
+        if (isLost(count)) {
+            MatScope.release(H);
+            return null;
+        }
+
+        refPoints = Arrays.copyOf(src, count * 2);
+        framePoints = Arrays.copyOf(dst, count * 2);
+        return H;
+    }
+
+    // Check whether too few points are left to keep tracking, in which case the route is identified
+    // from scratch in the next frame
+    private boolean isLost(int count) {
+        if (count >= MIN_TRACKED_POINTS && count >= MIN_TRACKED_FRACTION * initialCount) return false;
+        name = null;
+        return true;
+    }
+
+    // Move the point pairs whose flag is set to the front of the arrays, returning how many there are
+    private static int keep(byte[] flags, float[] src, float[] dst) {
+        int count = 0;
+        for (int i = 0; i < flags.length; i++) {
+            if (flags[i] == 0) continue;
+            src[count * 2] = src[i * 2];
+            src[count * 2 + 1] = src[i * 2 + 1];
+            dst[count * 2] = dst[i * 2];
+            dst[count * 2 + 1] = dst[i * 2 + 1];
+            count++;
+        }
+        return count;
+    }
+
+    private static MatOfPoint2f toMat(float[] points, int n) {
+        MatOfPoint2f mat = new MatOfPoint2f();
+        mat.alloc(n);
+        mat.put(0, 0, Arrays.copyOf(points, n * 2));
+        return mat;
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.Mat;
+
+import java.util.Random;
+
+// Approximate matcher using locality sensitive hashing with bit sampling. Every table hashes the
+// training descriptors by a random subset of their bits, and a query only computes the exact
+// distance to descriptors that share a bucket with it, or a bucket one bit away, in some table.
+// Descriptors that are close in Hamming distance agree on most sampled bits, so true matches are
+// found with high probability while most of the training set is never compared.
+public class LshHammingMatcher implements HammingMatcher {
+    private static final int DEFAULT_TABLES = 8;
+    private static final int DEFAULT_KEY_BITS = 16;
+
+    private final int nTrain;
+    private final int words;
+    private final long[] train;
+
+    // Bit positions sampled by each table
+    private final int[][] keyBits;
+    // Buckets of each table: descriptors with key k are bucketEntries[bucketStart[k]..bucketStart[k+1])
+    private final int[][] bucketStart;
+    private final int[][] bucketEntries;
+
+    public LshHammingMatcher(Mat trainDescriptors) {
+        this(trainDescriptors, DEFAULT_TABLES, DEFAULT_KEY_BITS, 0);
+    }
+
+    public LshHammingMatcher(Mat trainDescriptors, int tables, int bitsPerKey, long seed) {
+        nTrain = trainDescriptors.rows();
+        int bytes = trainDescriptors.cols();
+        words = (bytes + 7) / 8;
+        train = pack(trainDescriptors, words);
+
+        // Sample distinct bits for every table
+        Random random = new Random(seed);
+        int nBits = bytes * 8;
+        keyBits = new int[tables][Math.min(bitsPerKey, nBits)];
+        for (int t = 0; t < tables; t++) {
+            int[] bits = new int[nBits];
+            for (int b = 0; b < nBits; b++) bits[b] = b;
+            for (int b = 0; b < keyBits[t].length; b++) {
+                int swap = b + random.nextInt(nBits - b);
+                int tmp = bits[b];
+                bits[b] = bits[swap];
+                bits[swap] = tmp;
+                keyBits[t][b] = bits[b];
+            }
+        }
+
+        // Bucket the training descriptors with a counting sort on their keys
+        bucketStart = new int[tables][];
+        bucketEntries = new int[tables][];
+        int[] keys = new int[nTrain];
+        for (int t = 0; t < tables; t++) {
+            int nBuckets = 1 << keyBits[t].length;
+            int[] start = new int[nBuckets + 1];
+            for (int i = 0; i < nTrain; i++) {
+                keys[i] = key(train, i * words, keyBits[t]);
+                start[keys[i] + 1]++;
+            }
+            for (int k = 0; k < nBuckets; k++) start[k + 1] += start[k];
+
+            int[] next = new int[nBuckets];
+            System.arraycopy(start, 0, next, 0, nBuckets);
+            int[] entries = new int[nTrain];
+            for (int i = 0; i < nTrain; i++) entries[next[keys[i]]++] = i;
+
+            bucketStart[t] = start;
+            bucketEntries[t] = entries;
+        }
+    }
+
+    @Override
+    public void knnMatch2(Mat queryDescriptors, int[] nearest, int[] nearestDist, int[] secondDist) {
+        int nQuery = queryDescriptors.rows();
+        long[] query = pack(queryDescriptors, words);
+
+        // Marks which training descriptors were already compared with the current query
+        int[] visited = new int[nTrain];
+
+        for (int q = 0; q < nQuery; q++) {
+            int offset = q * words;
+            int best = -1;
+            int bestDist = NO_MATCH;
+            int second = NO_MATCH;
+
+            for (int t = 0; t < keyBits.length; t++) {
+                int key = key(query, offset, keyBits[t]);
+
+                // Probe the query's own bucket and every bucket one bit away from it
+                for (int probe = -1; probe < keyBits[t].length; probe++) {
+                    int k = (probe < 0) ? key : key ^ (1 << probe);
+                    for (int e = bucketStart[t][k]; e < bucketStart[t][k + 1]; e++) {
+                        int i = bucketEntries[t][e];
+                        if (visited[i] == q + 1) continue;
+                        visited[i] = q + 1;
+
+                        int d = hamming(query, offset, train, i * words, words);
+                        if (d < bestDist) {
+                            second = bestDist;
+                            bestDist = d;
+                            best = i;
+                        } else if (d < second) {
+                            second = d;
+                        }
+                    }
+                }
+            }
+
+            nearest[q] = best;
+            nearestDist[q] = bestDist;
+            secondDist[q] = second;
+        }
+    }
+
+    // Hash key of a descriptor from the sampled bits
+    private static int key(long[] data, int offset, int[] bits) {
+        int key = 0;
+        for (int b = 0; b < bits.length; b++) {
+            int bit = bits[b];
+            key |= (int) ((data[offset + (bit >> 6)] >>> (bit & 63)) & 1L) << b;
+        }
+        return key;
+    }
+
+    private static int hamming(long[] a, int offsetA, long[] b, int offsetB, int words) {
+        int d = 0;
+        for (int w = 0; w < words; w++) d += Long.bitCount(a[offsetA + w] ^ b[offsetB + w]);
+        return d;
+    }
+
+    // Read binary descriptors (one per row) into consecutive packed 64 bit words
+    private static long[] pack(Mat descriptors, int words) {
+        int n = descriptors.rows();
+        int bytes = descriptors.cols();
+        byte[] raw = new byte[n * bytes];
+        if (n > 0) descriptors.get(0, 0, raw);
+
+        long[] data = new long[n * words];
+        for (int i = 0; i < n; i++) {
+            for (int b = 0; b < bytes; b++) {
+                data[i * words + (b >> 3)] |= (raw[i * bytes + b] & 0xFFL) << ((b & 7) * 8);
+            }
+        }
+        return data;
+    }
+}
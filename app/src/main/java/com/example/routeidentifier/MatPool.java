@@ -0,0 +1,91 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+// Scratch Mats kept by size and type, so stages that need a buffer of the same size on every call,
+// like the color staging buffer of a gray conversion, don't allocate and free it every time.
+// Buffers are only reused for exactly the size they were made for, and the pool holds at most
+// MAX_BYTES, releasing buffers recycled beyond that. Pooled buffers are counted by MatScope
+public final class MatPool {
+    // Enough for the color staging buffer and gray image of one full resolution gray conversion,
+    // which is 48MB and 12MB for a 12 megapixel camera picture, so they're kept between pictures.
+    // The app clears the pool whenever it's asked to trim its memory
+    private static final long MAX_BYTES = 64L << 20;
+
+    private static final Map<Key, ArrayDeque<Mat>> free = new HashMap<>();
+    private static long freeBytes;
+
+    private MatPool() {}
+
+    // A Mat of the size and type, whose contents are undefined. Recycle it once it's no longer
+    // needed, or release it with MatScope.release()
+    public static Mat acquire(int rows, int cols, int type) {
+        synchronized (free) {
+            ArrayDeque<Mat> mats = free.get(new Key(rows, cols, type));
+            Mat mat = mats == null ? null : mats.poll();
+            if (mat != null) {
+                freeBytes -= bytes(mat);
+                return mat;
+            }
+        }
+        return MatScope.track(new Mat(rows, cols, type));
+    }
+
+    // Return a Mat from acquire() to the pool, or release it if the pool is full
+    public static void recycle(Mat mat) {
+        if (mat == null) return;
+        long bytes = bytes(mat);
+        synchronized (free) {
+            if (freeBytes + bytes <= MAX_BYTES) {
+                free.computeIfAbsent(new Key(mat.rows(), mat.cols(), mat.type()),
+                        k -> new ArrayDeque<>()).push(mat);
+                freeBytes += bytes;
+                return;
+            }
+        }
+        MatScope.release(mat);
+    }
+
+    // Release every pooled buffer, like when the app is low on memory
+    public static void clear() {
+        synchronized (free) {
+            for (ArrayDeque<Mat> mats : free.values()) {
+                for (Mat mat : mats) MatScope.release(mat);
+            }
+            free.clear();
+            freeBytes = 0;
+        }
+    }
+
+    private static long bytes(Mat mat) {
+        return mat.total() * mat.elemSize();
+    }
+
+    private static final class Key {
+        final int rows;
+        final int cols;
+        final int type;
+
+        Key(int rows, int cols, int type) {
+            this.rows = rows;
+            this.cols = cols;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return rows == k.rows && cols == k.cols && type == k.type;
+        }
+
+        @Override
+        public int hashCode() {
+            return (rows * 31 + cols) * 31 + type;
+        }
+    }
+}
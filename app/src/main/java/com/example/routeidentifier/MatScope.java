@@ -0,0 +1,106 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.Mat;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Owns the native Mats made during one piece of work, like an identification, and releases them all
+// when it's closed. A Mat only frees its native memory when it's released or finalized, and the GC
+// doesn't run on account of native memory, so Mats that are left to the GC pile up in the native
+// heap when identifications run back to back.
+//
+// Mats that outlive the work, like the features or homography it returns, are handed over with
+// keep() or made with track(), and must be released with release() by whoever ends up owning
+// them. Every Mat made through a scope or tracked is counted until it's released, so liveMats()
+// and liveBytes() stay flat across repeated work unless something leaks. Counted Mats are only
+// weakly referenced, so counting them doesn't keep the GC from finalizing one that leaks. A leak
+// that was collected is no longer live, so it's counted by leakedMats() instead
+public final class MatScope implements AutoCloseable {
+    // Mats that are owned by a scope or were kept, and haven't been released or collected yet,
+    // each with a reference that's queued if it's collected without being released
+    private static final Map<Mat, WeakReference<Mat>> live =
+            Collections.synchronizedMap(new WeakHashMap<>());
+    private static final ReferenceQueue<Mat> collected = new ReferenceQueue<>();
+    private static final AtomicInteger leaked = new AtomicInteger();
+
+    private final ArrayList<Mat> owned = new ArrayList<>();
+
+    // Make an empty Mat owned by the scope
+    public Mat mat() {
+        return add(new Mat());
+    }
+
+    // Own a Mat made elsewhere, like the result of an OpenCV call
+    public <T extends Mat> T add(T mat) {
+        if (mat != null) {
+            owned.add(mat);
+            count(mat);
+        }
+        return mat;
+    }
+
+    // Hand a Mat owned by the scope over to the caller, who has to release it
+    public <T extends Mat> T keep(T mat) {
+        owned.remove(mat);
+        return mat;
+    }
+
+    // Count a Mat that outlives the current work until it's released
+    public static <T extends Mat> T track(T mat) {
+        if (mat != null) count(mat);
+        return mat;
+    }
+
+    // Release Mats that were kept or tracked, or any others. Null Mats are skipped
+    public static void release(Mat... mats) {
+        for (Mat mat : mats) {
+            if (mat == null) continue;
+            WeakReference<Mat> ref = live.remove(mat);
+            // A cleared reference isn't queued, so the Mat doesn't count as leaked
+            if (ref != null) ref.clear();
+            mat.release();
+        }
+    }
+
+    // Release the Mats owned by the scope, most recent first
+    @Override
+    public void close() {
+        for (int i = owned.size() - 1; i >= 0; i--) release(owned.get(i));
+        owned.clear();
+    }
+
+    // Number of counted Mats that haven't been released or collected
+    public static int liveMats() {
+        return live.size();
+    }
+
+    // Native bytes of pixel data held by counted Mats that haven't been released. Submats share
+    // the data of their parent, so they aren't counted again
+    public static long liveBytes() {
+        long bytes = 0;
+        synchronized (live) {
+            for (Mat mat : live.keySet()) {
+                if (!mat.isSubmatrix()) bytes += mat.total() * mat.elemSize();
+            }
+        }
+        return bytes;
+    }
+
+    // Number of counted Mats the GC collected without them being released. They were finalized,
+    // but they held their native memory until the GC happened to run
+    public static int leakedMats() {
+        while (collected.poll() != null) leaked.incrementAndGet();
+        return leaked.get();
+    }
+
+    private static void count(Mat mat) {
+        WeakReference<Mat> old = live.put(mat, new WeakReference<>(mat, collected));
+        if (old != null) old.clear();
+    }
+}
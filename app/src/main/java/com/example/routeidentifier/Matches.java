@@ -0,0 +1,40 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.MatOfPoint2f;
+
+import java.util.Arrays;
+
+// Point pairs of the feature matches that passed the ratio test, sorted from the most to the least
+// distinctive match. The ratio of the nearest to the second nearest descriptor distance of every
+// match is kept as its quality, so solvers can try the most reliable matches first
+public class Matches {
+    // Consecutive x, y pairs in the src and query images
+    public final float[] src;
+    public final float[] dst;
+    // Ratio test score of every match, lower is better
+    public final float[] ratios;
+    public final int size;
+
+    Matches(float[] src, float[] dst, float[] ratios, int size) {
+        this.src = src;
+        this.dst = dst;
+        this.ratios = ratios;
+        this.size = size;
+    }
+
+    public MatOfPoint2f srcMat() {
+        return toPointMat(src, size);
+    }
+
+    public MatOfPoint2f dstMat() {
+        return toPointMat(dst, size);
+    }
+
+    // Put the first n x, y pairs of the array into a Mat of points
+    static MatOfPoint2f toPointMat(float[] points, int n) {
+        MatOfPoint2f mat = new MatOfPoint2f();
+        mat.alloc(n);
+        if (n > 0) mat.put(0, 0, points.length == n * 2 ? points : Arrays.copyOf(points, n * 2));
+        return mat;
+    }
+}
@@ -1,5 +1,6 @@
 package com.example.routeidentifier;
 
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.exifinterface.media.ExifInterface;
@@ -8,43 +9,33 @@ import android.Manifest;
 import android.app.Activity;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
 import android.graphics.RectF;
 import android.net.Uri;
 import android.os.Bundle;
-import android.provider.MediaStore;
 import android.util.Log;
 import android.widget.Button;
+import android.widget.Toast;
 
 import com.ortiz.touchview.TouchImageView;
 
-import org.opencv.android.Utils;
-import org.opencv.core.Core;
-import org.opencv.core.CvType;
-import org.opencv.core.Mat;
-import org.opencv.core.MatOfPoint;
-import org.opencv.core.Point;
-import org.opencv.core.Rect;
-import org.opencv.core.Scalar;
-import org.opencv.core.Size;
-import org.opencv.imgproc.Imgproc;
-
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
-
-import static org.opencv.imgproc.Imgproc.COLOR_RGBA2GRAY;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MeasureBoltDistanceActivity extends AppCompatActivity {
 
     private static final String TAG = "BoltDistanceActivity";
     private static final int GALLERY_REQUEST_CODE = 1;
+    // Largest dimension of the preview shown while the image is zoomed out
+    private static final int PREVIEW_SIZE = 2048;
 
     private static final int REQUEST_EXTERNAL_STORAGE = 1;
     private static String[] PERMISSIONS_STORAGE = {
@@ -54,10 +45,17 @@ public class MeasureBoltDistanceActivity extends AppCompatActivity {
 
     // View that allows users to zoom in on an image
     private TouchImageView imageView;
-    // Current image shown in the imageView
-    private Bitmap imageBitmap;
+    // Views that draw detail tiles and the bolt annotations over the image
+    private DetailTileView tileView;
+    private BoltOverlayView overlayView;
+    // Current image shown in the imageView, decoded a region at a time
+    private TiledImageSource imageSource;
     // Helper class to measure distance between bolts
     private BoltMeasurer boltMeasurer;
+    // Previews the bolt in the zoomed box as the image moves
+    private BoltPreviewer boltPreviewer;
+    // Finds picked bolts off the UI thread, one pick at a time so they're added in order
+    private final ExecutorService pickExecutor = Executors.newSingleThreadExecutor();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -78,22 +76,30 @@ public class MeasureBoltDistanceActivity extends AppCompatActivity {
         // Set up the imageView
         imageView = findViewById(R.id.image);
         imageView.setMaxZoom(40);
-
-        // Get default bitmap
-        Bitmap fullSized = BitmapFactory.decodeResource(getResources(), R.drawable.boltsample);
-        imageView.setImageResource(R.drawable.boltsample);
-
-        // Scale the image down
-        Matrix matrix = new Matrix();
-        int w = fullSized.getWidth();
-        int h = fullSized.getHeight();
-        float scale = (h > w) ? 4000f / h : 4000f / w;
-        matrix.postScale(scale, scale);
-        imageBitmap = Bitmap.createBitmap(fullSized, 0, 0, w, h, matrix, true);
+        tileView = findViewById(R.id.detailTiles);
+        tileView.attach(imageView);
+        overlayView = findViewById(R.id.boltOverlay);
+        overlayView.attach(imageView);
+        imageView.setOnTouchImageViewListener(() -> {
+            tileView.invalidate();
+            overlayView.invalidate();
+            if (imageSource != null) boltPreviewer.request(imageView.getZoomedRect());
+        });
 
         // Initialize bolt measurer helper class
         boltMeasurer = new BoltMeasurer();
-        boltMeasurer.setImageBitmap(imageBitmap);
+        boltPreviewer = new BoltPreviewer(boltMeasurer, this::runOnUiThread, bolt -> {
+            boltMeasurer.showPreview(bolt);
+            overlayView.invalidate();
+        });
+
+        // Show the default image
+        try {
+            InputStream stream = getResources().openRawResource(R.drawable.boltsample);
+            showImage(TiledImageSource.open(stream, ExifInterface.ORIENTATION_NORMAL));
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't open the default image", e);
+        }
 
         // Activate button to let user choose another image
         Button button = findViewById(R.id.chooseImage);
@@ -102,12 +108,126 @@ public class MeasureBoltDistanceActivity extends AppCompatActivity {
         // Activate the bolt selector button
         Button buttonPickBolt = findViewById(R.id.pickBolt);
         buttonPickBolt.setOnClickListener(view -> measureBolt());
+
+        // Activate the button to find bolts automatically
+        Button buttonFindBolts = findViewById(R.id.findBolts);
+        buttonFindBolts.setOnClickListener(view -> findBolts());
     }
 
+    // Show an image, decoding a preview of it and only decoding its detail as it's zoomed into
+    private void showImage(TiledImageSource source) {
+        boltPreviewer.cancel();
+        boltMeasurer.release();
+
+        // Stop decoding tiles of the old image before its decoder is recycled
+        int sample = source.getSampleSize(PREVIEW_SIZE);
+        tileView.setSource(source, sample);
+        if (imageSource != null) imageSource.recycle();
+        imageSource = source;
+
+        imageView.setImageBitmap(source.decodePreview(sample));
+        boltMeasurer.setImageSource(source);
+        overlayView.setAnnotations(boltMeasurer.getAnnotations(), boltMeasurer.getImageWidth());
+    }
+
+    // Find the bolt in the zoomed box in the background, and add it once it's found
     public void measureBolt() {
+        if (imageSource == null) return;
+        TiledImageSource picked = imageSource;
         RectF zoom = imageView.getZoomedRect();
-        imageBitmap = boltMeasurer.detectBolt(zoom);
-        imageView.setImageBitmap(imageBitmap);
+        CompletableFuture.supplyAsync(() -> boltMeasurer.findBolt(zoom), pickExecutor)
+                .whenComplete((pick, e) -> runOnUiThread(() -> {
+                    if (e != null) {
+                        Log.e(TAG, "Couldn't pick the bolt", e);
+                        return;
+                    }
+                    if (pick == null) return;
+                    // Skip the bolt if another image was chosen in the meantime
+                    if (picked != imageSource) {
+                        pick.release();
+                        return;
+                    }
+
+                    // The picked bolt is drawn in place of its preview
+                    boltMeasurer.addBolt(pick);
+                    boltPreviewer.cancel();
+                    boltMeasurer.showPreview(null);
+                    overlayView.invalidate();
+                }));
+    }
+
+    // Scan the whole image for bolts in the background and let the user confirm them
+    public void findBolts() {
+        if (imageSource == null) return;
+        TiledImageSource scanned = imageSource;
+        Button buttonFindBolts = findViewById(R.id.findBolts);
+        buttonFindBolts.setEnabled(false);
+
+        CompletableFuture.supplyAsync(boltMeasurer::findCandidates)
+                .whenComplete((candidates, e) -> runOnUiThread(() -> {
+                    buttonFindBolts.setEnabled(true);
+                    if (e != null) {
+                        Log.e(TAG, "Couldn't scan for bolts", e);
+                        return;
+                    }
+                    // Skip the result if another image was chosen in the meantime
+                    if (scanned != imageSource) return;
+                    if (candidates.isEmpty()) {
+                        Toast.makeText(this, R.string.no_bolts_found, Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    confirmCandidates(candidates);
+                }));
+    }
+
+    // Show the numbered candidates over the image and ask which of them are bolts
+    private void confirmCandidates(List<BoltCandidateFinder.Candidate> candidates) {
+        boltMeasurer.showCandidates(candidates);
+        overlayView.invalidate();
+
+        String[] items = new String[candidates.size()];
+        boolean[] checked = new boolean[candidates.size()];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = String.format(Locale.US, "%d (%.0f%%)", i + 1,
+                    100 * candidates.get(i).score);
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.confirm_bolts)
+                .setMultiChoiceItems(items, checked, (dialog, which, isChecked) ->
+                        checked[which] = isChecked)
+                .setPositiveButton(android.R.string.ok, (dialog, which) -> {
+                    List<BoltCandidateFinder.Candidate> confirmed = new ArrayList<>();
+                    for (int i = 0; i < checked.length; i++) {
+                        if (checked[i]) confirmed.add(candidates.get(i));
+                    }
+                    measureCandidates(confirmed);
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .setOnDismissListener(dialog -> {
+                    boltMeasurer.showCandidates(Collections.emptyList());
+                    overlayView.invalidate();
+                })
+                .show();
+    }
+
+    // Find the bolts of the confirmed candidates in the background, and add them once they're all
+    // found
+    private void measureCandidates(List<BoltCandidateFinder.Candidate> confirmed) {
+        TiledImageSource picked = imageSource;
+        CompletableFuture.supplyAsync(() -> boltMeasurer.findCandidateBolts(confirmed),
+                pickExecutor).whenComplete((picks, e) -> runOnUiThread(() -> {
+                    if (e != null) {
+                        Log.e(TAG, "Couldn't measure the bolts", e);
+                        return;
+                    }
+                    for (BoltMeasurer.Pick pick : picks) {
+                        // Skip the bolts if another image was chosen in the meantime
+                        if (picked != imageSource) pick.release();
+                        else boltMeasurer.addBolt(pick);
+                    }
+                    overlayView.invalidate();
+                }));
     }
 
     // Create intent to let user pick image from gallery
@@ -134,19 +254,9 @@ public class MeasureBoltDistanceActivity extends AppCompatActivity {
                 case GALLERY_REQUEST_CODE:
                     //data.getData returns the content URI for the selected Image
                     Uri selectedImage = data.getData();
-                    imageView.setImageURI(selectedImage);
-
-                    String imgDecodableString = getImagePath(selectedImage);
 
-                    // Decode image and its metadata
-                    byte[] full_size = null;
-                    String rotation = null;
+                    // Read in the image and its orientation, and show it
                     try {
-                        // Save metadata about image orientation
-                        ExifInterface exif = new ExifInterface(imgDecodableString);
-                        rotation = exif.getAttribute(ExifInterface.TAG_ORIENTATION);
-
-                        // Read in the image into a byte array
                         InputStream iStream = getContentResolver().openInputStream(selectedImage);
 
                         ByteArrayOutputStream byteBuffer = new ByteArrayOutputStream();
@@ -157,40 +267,26 @@ public class MeasureBoltDistanceActivity extends AppCompatActivity {
                         while ((len = iStream.read(buffer)) != -1) {
                             byteBuffer.write(buffer, 0, len);
                         }
-                        full_size = byteBuffer.toByteArray();
+                        iStream.close();
+                        byte[] full_size = byteBuffer.toByteArray();
+
+                        ExifInterface exif = new ExifInterface(new ByteArrayInputStream(full_size));
+                        int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                                ExifInterface.ORIENTATION_NORMAL);
+                        showImage(TiledImageSource.open(full_size, orientation));
                     }
                     catch (Exception e) {
                         e.printStackTrace();
                     }
-
-                    // Convert the image byte array into a bitmap
-                    Bitmap bitmap = BitmapFactory.decodeByteArray(full_size, 0, full_size.length);
-
-                    // Create a matrix to rotate the image
-                    Matrix matrix = new Matrix();
-                    if (Integer.parseInt(rotation) == ExifInterface.ORIENTATION_ROTATE_90) {
-                        matrix.postRotate(90);
-                    }
-
-                    // Rotate and save the bitmap
-                    int w = bitmap.getWidth();
-                    int h = bitmap.getHeight();
-                    imageBitmap = Bitmap.createBitmap(bitmap, 0, 0, w, h, matrix, true);
-                    boltMeasurer.setImageBitmap(imageBitmap);
             }
     }
 
-    private String getImagePath(Uri selectedImage) {
-        String[] filePathColumn = { MediaStore.Images.Media.DATA };
-        // Get the cursor
-        Cursor cursor = getContentResolver().query(selectedImage, filePathColumn, null, null, null);
-        // Move to first row
-        cursor.moveToFirst();
-        //Get the column index of MediaStore.Images.Media.DATA
-        int columnIndex = cursor.getColumnIndex(filePathColumn[0]);
-        //Gets the String value in the column
-        String imgDecodableString = cursor.getString(columnIndex);
-        cursor.close();
-        return imgDecodableString;
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        boltPreviewer.shutdown();
+        pickExecutor.shutdown();
+        boltMeasurer.release();
+        if (imageSource != null) imageSource.recycle();
     }
 }
@@ -2,13 +2,14 @@ package com.example.routeidentifier;
 
 import android.annotation.SuppressLint;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.os.Bundle;
+import android.os.Debug;
 import android.util.Log;
+import android.util.LruCache;
 import android.view.ViewTreeObserver;
 import android.widget.ImageView;
 import android.widget.TextView;
@@ -16,64 +17,151 @@ import android.widget.TextView;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 
-import com.mongodb.client.model.Filters;
-import com.mongodb.stitch.android.services.mongodb.remote.RemoteFindIterable;
 import com.ortiz.touchview.TouchImageView;
-import com.otaliastudios.cameraview.AspectRatio;
 import com.otaliastudios.cameraview.BitmapCallback;
 import com.otaliastudios.cameraview.PictureResult;
 
 import org.bson.Document;
 import org.bson.types.Binary;
 import org.opencv.android.Utils;
+import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
-
-import static com.example.routeidentifier.StartActivity.coll;
-import static com.example.routeidentifier.StartActivity.image_coll;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static com.example.routeidentifier.StartActivity.repository;
 
 public class PicturePreviewActivity extends AppCompatActivity {
     private static final String TAG = "PicturePreviewActivity";
+    // Homographies the solver is less confident in are likely wrong, so the route isn't drawn.
+    // Confidence is measured against the homography's own inliers, so it also needs as many of
+    // them as a route needs to be ranked
+    private static final double MIN_CONFIDENCE = 0.95;
     private static String route_name;
     private static String route_grade;
     private static String route_bolts;
 
     private static PictureResult picture;
-    private static Document image_doc;
+    private static volatile Document image_doc;
     private static Bitmap canvasBitmap;
 
+    // Image and route documents of every route in the area when no single route is chosen, and
+    // the path of the area
+    private static volatile HashMap<String, Document> candidate_docs;
+    private static volatile String candidate_area;
+    private static HashMap<String, Document> candidate_info;
+    private static RouteRanker ranker;
+
+    // Features of the reference images matched against most recently, so their matchers are only
+    // built once, and gray reference images at the size they're refined at of the routes chosen
+    // most recently, so identifying a chosen route again doesn't download and decode its image.
+    // Evicted entries are released, so the caches hold several times as many routes as a picture
+    // is matched against at once
+    private static final int FEATURE_CACHE_SIZE = 32;
+    private static final int REFINEMENT_CACHE_SIZE = 8;
+    private static final LruCache<String, ImageFeatures> feature_cache =
+            new LruCache<String, ImageFeatures>(FEATURE_CACHE_SIZE) {
+                @Override
+                protected void entryRemoved(boolean evicted, String name, ImageFeatures removed,
+                                            ImageFeatures replacement) {
+                    removed.release();
+                }
+            };
+    private static final LruCache<String, Mat> refinement_cache =
+            new LruCache<String, Mat>(REFINEMENT_CACHE_SIZE) {
+                @Override
+                protected void entryRemoved(boolean evicted, String name, Mat removed,
+                                            Mat replacement) {
+                    MatScope.release(removed);
+                }
+            };
+
+    // Retrieval indexes over the reference images of each area, by the area's path, used to
+    // shortlist routes before matching. Each area's vocabulary is trained on its own routes, and
+    // is saved in a file named by the hash of its path
+    private static final String INDEX_FILE = "route_index_%08x.bin";
+    private static final int INDEX_BRANCHING = 8;
+    private static final int INDEX_DEPTH = 4;
+    private static final int INDEX_TOP_K = 5;
+    private static final HashMap<String, VocabularyTree> indexes = new HashMap<>();
+
+    // Index of the candidates live frames are matched against, prepared in the background for the
+    // candidates it was started for, and the routes whose features are being loaded for them
+    private static HashMap<String, Document> live_indexed;
+    private static CompletableFuture<VocabularyTree> live_index;
+    private static final Set<String> live_loading = new HashSet<>();
+
     public static void setPictureResult(@Nullable PictureResult pictureResult) {
         picture = pictureResult;
     }
 
     public static void setTargetPhoto(String photo_name) {
         route_name = photo_name;
-
-        // Search for the target photo in the image database
-        RemoteFindIterable<Document> query = image_coll.find(Filters.regex("name", route_name)).limit(1);
-        ArrayList<Document> image_result = new ArrayList<>();
-        query.into(image_result).addOnSuccessListener(documents -> {
-            // There should only be one result
-            for (Document d : documents) {
-                image_doc = d;
-            }
+        image_doc = null;
+        candidate_docs = null;
+
+        // Look up the target photo's document in the image database by name, without the image
+        ImageStore.findMetadata(route_name).thenAccept(d -> image_doc = d)
+                .exceptionally(e -> {
+                    Log.e(TAG, "Image Search Failed", e);
+                    return null;
+                });
+
+        // Look up the target route information in the local copy of the information database
+        repository.get(route_name).thenAccept(d -> {
+            if (d == null) return;
+            route_grade = d.getString("grade");
+            route_bolts = d.getString("bolts");
         });
+    }
 
-        // Search for the target route information in the information database
-        RemoteFindIterable<Document> route_info_query = coll.find(Filters.regex("_id", route_name)).limit(1);
-        ArrayList<Document> route_info_result = new ArrayList<>();
-        route_info_query.into(route_info_result).addOnSuccessListener(documents -> {
-            // There should only be one result
-            for (Document d : documents) {
-                route_grade = d.getString("grade");
-                route_bolts = d.getString("bolts");
+    // Match pictures against every route in the area instead of a single chosen route
+    public static void setCandidateArea(String path) {
+        route_name = null;
+        image_doc = null;
+        candidate_docs = null;
+        candidate_area = path;
+
+        // Search for all the routes in the area and its subareas
+        repository.getDescendants(path).thenAccept(routes -> {
+            HashMap<String, Document> info = new HashMap<>();
+            for (Document d : routes) {
+                if (d.containsKey("grade")) info.put(d.getString("_id"), d);
             }
-        }).addOnCanceledListener(() -> Log.e(TAG, "Canceled"))
-                .addOnFailureListener(documents -> Log.e(TAG, "Route Info Search Failed"));
+            candidate_info = info;
+
+            // Look up the documents of those routes in the image database, without the images
+            ImageStore.findMetadata(info.keySet()).thenAccept(images -> {
+                HashMap<String, Document> docs = new HashMap<>();
+                for (Document d : images) {
+                    docs.put(d.getString("name"), d);
+                }
+                candidate_docs = docs;
+            }).exceptionally(e -> {
+                Log.e(TAG, "Area Image Search Failed", e);
+                return null;
+            });
+        });
     }
 
     @SuppressLint("ClickableViewAccessibility")
@@ -102,74 +190,451 @@ public class PicturePreviewActivity extends AppCompatActivity {
     }
 
     private void setupPage() {
-        // Get the picture and views
+        // Get the picture
         final PictureResult result = picture;
-        final TouchImageView imageView = findViewById(R.id.image);
-        final ImageView overlayView = findViewById(R.id.container);
 
-        // Read image from the database as a bitmap
-        Binary b = (Binary) image_doc.get("image");
-        byte[] byteArray = b.getData();
-        Bitmap src = BitmapFactory.decodeByteArray(byteArray, 0, byteArray.length);
+        // Identify the route in the picture, either against the chosen route or every route in the area
+        final long decodeStart = System.nanoTime();
+        result.toBitmap(1000, 1000, bitmap -> {
+            PipelineMetrics.record(PipelineMetrics.Stage.DECODE, System.nanoTime() - decodeStart);
+            if (image_doc != null) {
+                identifyTargetRoute(bitmap);
+            } else if (candidate_docs != null) {
+                identifyAreaRoute(bitmap);
+            }
+        });
+    }
+
+    // Find the chosen route in the camera image
+    private void identifyTargetRoute(Bitmap bitmap) {
+        // Initialize the feature detector
+        final FeatureDetector myFeatureDetector = new FeatureDetector();
+        final Document doc = image_doc;
+
+        // Estimate the homography matrix between the source image and camera image on downscaled
+        // images, from the features stored with the source image, and refine it by aligning the
+        // source image itself, downloaded at the size its route was drawn at once per route
+        final Mat queryGray = ImagePreprocessor.toGray(bitmap);
+        CompletableFuture<HomographyResult> homography = CompletableFuture.supplyAsync(() -> {
+            ImageFeatures srcFeatures = getImageFeatures(myFeatureDetector, doc);
+            Mat srcFine = getRefinementImage(doc);
+            return myFeatureDetector.getHomographyCoarseToFine(srcFeatures, srcFine, queryGray);
+        }, FeatureDetector.getExecutor());
+        homography.whenComplete((result, e) -> MatPool.recycle(queryGray));
+
+        // Draw the route once the size of the image it was drawn on is known too, or say why it
+        // isn't drawn
+        final TextView textView = findViewById(R.id.routeLabel);
+        CompletableFuture<int[]> srcSize = ImageStore.getSize(doc, ImageStore.Resolution.MATCH);
+        homography.thenCombine(srcSize, (result, size) -> {
+            runOnUiThread(() -> {
+                if (result == null || result.inliers < RouteRanker.MIN_INLIERS
+                        || result.confidence < MIN_CONFIDENCE) {
+                    if (result != null) result.release();
+                    textView.setText(R.string.no_route_found);
+                    return;
+                }
+                drawRoute(bitmap, result.H, doc, size);
+                result.release();
+                logNativeMemory();
+            });
+            return null;
+        }).exceptionally(e -> {
+            Log.e(TAG, "Failed to find the route in the picture", e);
+            // Release the homography if it was only the size that couldn't be found
+            homography.thenAccept(result -> {
+                if (result != null) result.release();
+            });
+            runOnUiThread(() -> textView.setText(R.string.identification_failed));
+            return null;
+        });
+    }
+
+    // Find whichever route in the area best matches the camera image
+    private void identifyAreaRoute(Bitmap bitmap) {
+        final HashMap<String, Document> candidates = candidate_docs;
+        final String area = candidate_area;
+        final TextView textView = findViewById(R.id.routeLabel);
+        textView.setText(String.format(Locale.US, "Matching against %d routes...", candidates.size()));
+
+        // Rank the routes away from the UI thread. If they can't be loaded or ranked, the label
+        // says so rather than staying on the progress message
+        FeatureDetector.getExecutor().execute(() -> {
+            try {
+                rankAreaRoutes(bitmap, candidates, area, textView);
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Matching was interrupted", e);
+                Thread.currentThread().interrupt();
+                runOnUiThread(() -> textView.setText(R.string.identification_failed));
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to match the picture against the area", e);
+                runOnUiThread(() -> textView.setText(R.string.identification_failed));
+            }
+        });
+    }
+
+    // Rank the area's routes against the picture and show the best match
+    private void rankAreaRoutes(Bitmap bitmap, HashMap<String, Document> candidates, String area,
+                                TextView textView) throws InterruptedException {
+        final FeatureDetector myFeatureDetector = new FeatureDetector();
+        Mat gray = ImagePreprocessor.toGray(bitmap);
+        ImageFeatures query = myFeatureDetector.computeFeatures(gray);
+        MatPool.recycle(gray);
+
+        // Only load and match the routes the index finds most similar to the picture
+        List<RouteRanker.Result> ranked;
+        try {
+            Map<String, ImageFeatures> features = getShortlist(myFeatureDetector, getFilesDir(),
+                    area, candidates, query);
+            ranked = getRanker().rank(features, query);
+        } finally {
+            query.release();
+        }
+
+        // Size of the best match's image, which older images have to be downloaded for
+        Document bestDoc = ranked.isEmpty() ? null : candidates.get(ranked.get(0).name);
+        int[] srcSize;
+        try {
+            srcSize = bestDoc == null ? null
+                    : ImageStore.getSize(bestDoc, ImageStore.Resolution.MATCH).join();
+        } catch (RuntimeException e) {
+            RouteRanker.release(ranked);
+            throw e;
+        }
 
-        // Convert bitmap image to Mat
-        final Mat srcMat = new Mat(src.getWidth(), src.getHeight(), CvType.CV_8UC4);
-        Utils.bitmapToMat(src, srcMat);
+        runOnUiThread(() -> {
+            if (ranked.isEmpty()) {
+                textView.setText(R.string.no_route_found);
+                return;
+            }
+
+            // Show the best match
+            RouteRanker.Result best = ranked.get(0);
+            Log.i(TAG, String.format(Locale.US, "Matched %s with %d inliers", best.name, best.inliers));
+            route_name = best.name;
+            Document info = candidate_info.get(best.name);
+            if (info != null) {
+                route_grade = info.getString("grade");
+                route_bolts = info.getString("bolts");
+            }
+            drawRoute(bitmap, best.H, candidates.get(best.name), srcSize);
+            RouteRanker.release(ranked);
+            logNativeMemory();
+        });
+    }
+
+    // Warp the route lines of the matched image, whose width and height at the resolution it was
+    // matched at are srcSize, onto the camera image and display them
+    private void drawRoute(Bitmap bitmap, Mat H, Document doc, int[] srcSize) {
+        long renderStart = PipelineMetrics.start(PipelineMetrics.Stage.RENDER);
+        final TouchImageView imageView = findViewById(R.id.image);
+        final ImageView overlayView = findViewById(R.id.container);
+        int w = bitmap.getWidth(), h = bitmap.getHeight();
 
         // Get the true size of the bitmap on the screen
         int src_width = imageView.getMeasuredWidth();
-        int src_height = src.getHeight() * src_width / src.getWidth();
+        int src_height = srcSize[1] * src_width / srcSize[0];
 
         // Create a bitmap to draw the route on
         canvasBitmap = Bitmap.createBitmap(src_width, src_height, Bitmap.Config.ARGB_8888);
 
         // Get the route lines and convert them into a Mat
-        Bitmap bitmap_lines = getBitmapRouteLines();
-        bitmap_lines = Bitmap.createScaledBitmap(bitmap_lines, src.getWidth(), src.getHeight(), false);
-        final Mat lines = new Mat(bitmap_lines.getWidth(), bitmap_lines.getHeight(), CvType.CV_8UC4);
-        Utils.bitmapToMat(bitmap_lines, lines);
-
-        // Initialize the feature detector
-        final FeatureDetector myFeatureDetector = new FeatureDetector();
-
-        final long delay = getIntent().getLongExtra("delay", 0);
-        AspectRatio ratio = AspectRatio.of(result.getSize());
-        result.toBitmap(1000, 1000, bitmap -> {
-            int w = bitmap.getWidth(), h = bitmap.getHeight();
-
-            // Try to estimate the homography matrix between the source image and camera image
-            Mat H = myFeatureDetector.getHomography(src, bitmap);
-            if (H == null) { return; }
+        Bitmap bitmap_lines = getBitmapRouteLines(doc);
+        bitmap_lines = Bitmap.createScaledBitmap(bitmap_lines, srcSize[0], srcSize[1], false);
+        Bitmap line_overlay = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+        try (MatScope scope = new MatScope()) {
+            final Mat lines = scope.add(new Mat(bitmap_lines.getHeight(), bitmap_lines.getWidth(), CvType.CV_8UC4));
+            Utils.bitmapToMat(bitmap_lines, lines);
 
             // Warp src lines onto camera image
-            Mat warp = new Mat();
+            Mat warp = scope.mat();
+            long warpStart = PipelineMetrics.start(PipelineMetrics.Stage.WARP);
             Imgproc.warpPerspective(lines, warp, H, new Size(w, h));
+            PipelineMetrics.stop(PipelineMetrics.Stage.WARP, warpStart);
 
             // Convert warped lines to bitmap
-            Bitmap line_overlay = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
             Utils.matToBitmap(warp, line_overlay);
+        }
+
+        // Rotate the image and warped lines if phone orientation is horizontal
+        if (w > h) {
+            Matrix matrix = new Matrix();
+            matrix.postRotate(90);
+            bitmap = Bitmap.createBitmap(bitmap, 0, 0, w, h, matrix, true);
+            line_overlay = Bitmap.createBitmap(line_overlay, 0, 0, w, h, matrix, true);
+        }
+
+        // Draw the image and the warped lines
+        imageView.setImageBitmap(bitmap);
+        overlayView.setImageBitmap(line_overlay);
+        imageView.setMaxZoom(10);
+
+        // Display the route information
+        TextView textView = findViewById(R.id.routeLabel);
+        textView.setText(String.format("%s (%s), %s bolts", route_name, route_grade, route_bolts));
+        PipelineMetrics.stop(PipelineMetrics.Stage.RENDER, renderStart);
+    }
+
+    // Log the native memory held by counted Mats and by the whole native heap, so leaks show up
+    // as growth across identifications
+    private static void logNativeMemory() {
+        Log.d(TAG, String.format(Locale.US, "Live Mats: %d (%d KB), leaked: %d, native heap: %d KB",
+                MatScope.liveMats(), MatScope.liveBytes() / 1024, MatScope.leakedMats(),
+                Debug.getNativeHeapAllocatedSize() / 1024));
+    }
+
+    // Features of an image document from the cache, or loaded and cached. They're released once
+    // they're evicted, so they mustn't be released by the caller
+    private static ImageFeatures getImageFeatures(FeatureDetector detector, Document doc) {
+        String name = doc.getString("name");
+        ImageFeatures cached = feature_cache.get(name);
+        if (cached != null) return cached;
+
+        ImageFeatures features = loadImageFeatures(detector, doc);
+        synchronized (feature_cache) {
+            // Keep whichever was cached first if two identifications loaded them at once
+            cached = feature_cache.get(name);
+            if (cached == null) {
+                feature_cache.put(name, features);
+                return features;
+            }
+        }
+        features.release();
+        return cached;
+    }
+
+    // Read the features stored with an image document, or compute them for images uploaded without
+    // them. The caller has to release them
+    private static ImageFeatures loadImageFeatures(FeatureDetector detector, Document doc) {
+        Binary f = (Binary) doc.get("features");
+        if (f != null) return ImageFeatures.fromBytes(f.getData());
+
+        Bitmap bitmap = ImageStore.getImage(doc, ImageStore.Resolution.MATCH).join();
+        Mat gray = ImagePreprocessor.toGray(bitmap);
+        ImageFeatures features = detector.computeFeatures(gray,
+                PipelineMetrics.Stage.DETECT_REFERENCE);
+        MatPool.recycle(gray);
+        return features;
+    }
 
-            // Rotate the image and warped lines if phone orientation is horizontal
-            if (w > h) {
-                Matrix matrix = new Matrix();
-                matrix.postRotate(90);
-                bitmap = Bitmap.createBitmap(bitmap, 0, 0, w, h, matrix, true);
-                line_overlay = Bitmap.createBitmap(line_overlay, 0, 0, w, h, matrix, true);
+    // Gray reference image of the route at the size it's refined at. It's downloaded and decoded
+    // the first time the route is identified, and cached after that, so it mustn't be released
+    private static Mat getRefinementImage(Document doc) {
+        String name = doc.getString("name");
+        Mat cached = refinement_cache.get(name);
+        if (cached != null) return cached;
+
+        Bitmap bitmap = ImageStore.getImage(doc, ImageStore.Resolution.MATCH).join();
+        Mat gray = ImagePreprocessor.toGray(bitmap);
+        Mat fine = FeatureDetector.getRefinementImage(gray);
+        MatPool.recycle(gray);
+
+        synchronized (refinement_cache) {
+            // Keep whichever was cached first if two identifications loaded it at once
+            cached = refinement_cache.get(name);
+            if (cached == null) {
+                refinement_cache.put(name, fine);
+                return fine;
             }
+        }
+        MatScope.release(fine);
+        return cached;
+    }
 
-            // Draw the image and the warped lines
-            imageView.setImageBitmap(bitmap);
-            overlayView.setImageBitmap(line_overlay);
-            imageView.setMaxZoom(10);
+    // Features of the routes a live frame with the query features is matched against: the chosen
+    // route, or the candidates of the area the index finds most similar to the frame. Nothing is
+    // downloaded, decoded or indexed on the calling thread. That's started in the background
+    // instead, and null is returned until it's done, so frames aren't held up
+    static Map<String, ImageFeatures> getLiveShortlist(FeatureDetector detector, File filesDir,
+                                                       ImageFeatures query) {
+        Document target = image_doc;
+        HashMap<String, Document> candidates = candidate_docs;
+        String area = candidate_area;
+        List<Document> docs = new ArrayList<>();
+        if (target != null) {
+            docs.add(target);
+        } else if (candidates == null) {
+            return null;
+        } else if (candidates.size() <= INDEX_TOP_K) {
+            docs.addAll(candidates.values());
+        } else {
+            VocabularyTree index = getLiveIndex(detector, filesDir, area, candidates);
+            if (index == null) return null;
+            for (String name : index.query(query.descriptors, INDEX_TOP_K, candidates.keySet())) {
+                docs.add(candidates.get(name));
+            }
+        }
+
+        HashMap<String, ImageFeatures> features = new HashMap<>();
+        for (Document d : docs) {
+            ImageFeatures cached = feature_cache.get(d.getString("name"));
+            if (cached != null) features.put(d.getString("name"), cached);
+            else loadLiveFeatures(detector, d);
+        }
+        return features.size() == docs.size() ? features : null;
+    }
 
-            // Display the route information
-            TextView textView = findViewById(R.id.routeLabel);
-            textView.setText(String.format("%s (%s), %s bolts", route_name, route_grade, route_bolts));
+    // Index of the candidates once it's been prepared in the background, or null until then or if
+    // there's nothing to index. It's prepared again if that failed or the candidates changed
+    private static synchronized VocabularyTree getLiveIndex(FeatureDetector detector,
+                                                            File filesDir, String area,
+                                                            HashMap<String, Document> candidates) {
+        if (candidates != live_indexed || live_index.isCompletedExceptionally()) {
+            live_indexed = candidates;
+            live_index = CompletableFuture.supplyAsync(
+                    () -> prepareIndex(detector, filesDir, area, candidates),
+                    FeatureDetector.getExecutor());
+        }
+        return live_index.getNow(null);
+    }
+
+    // Load the features of a route into the cache in the background, unless they're being loaded
+    private static void loadLiveFeatures(FeatureDetector detector, Document doc) {
+        String name = doc.getString("name");
+        synchronized (live_loading) {
+            if (!live_loading.add(name)) return;
+        }
+        FeatureDetector.getExecutor().execute(() -> {
+            try {
+                getImageFeatures(detector, doc);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to load the features of " + name, e);
+            } finally {
+                synchronized (live_loading) {
+                    live_loading.remove(name);
+                }
+            }
         });
     }
 
+    // Image document of a route that pictures are currently matched against
+    static Document getTargetDocument(String name) {
+        if (image_doc != null && name.equals(image_doc.getString("name"))) return image_doc;
+        return (candidate_docs == null) ? null : candidate_docs.get(name);
+    }
+
+    // Shared ranker with one worker per core
+    static synchronized RouteRanker getRanker() {
+        if (ranker == null) {
+            ranker = new RouteRanker(Runtime.getRuntime().availableProcessors());
+        }
+        return ranker;
+    }
+
+    // Features of the candidates most likely to be in the picture with the query features: the
+    // ones the area's index finds most similar to it, or every candidate if there are too few to
+    // shortlist or nothing to index. Only the shortlisted features are loaded through the cache
+    private static Map<String, ImageFeatures> getShortlist(FeatureDetector detector, File filesDir,
+                                                           String area,
+                                                           Map<String, Document> candidates,
+                                                           ImageFeatures query) {
+        Collection<String> names = candidates.keySet();
+        if (candidates.size() > INDEX_TOP_K) {
+            VocabularyTree index = prepareIndex(detector, filesDir, area, candidates);
+            if (index != null) {
+                names = index.query(query.descriptors, INDEX_TOP_K, candidates.keySet());
+            }
+        }
+        HashMap<String, ImageFeatures> features = new HashMap<>();
+        for (String name : names) {
+            features.put(name, getImageFeatures(detector, candidates.get(name)));
+        }
+        return features;
+    }
+
+    // Index of the area with every candidate in it, or null if there's nothing to index. The index
+    // is saved, so only the features of candidates that aren't indexed yet are loaded, and they're
+    // released once they're indexed
+    private static VocabularyTree prepareIndex(FeatureDetector detector, File filesDir, String area,
+                                               Map<String, Document> candidates) {
+        VocabularyTree index = loadIndex(filesDir, area);
+        HashMap<String, ImageFeatures> unindexed = new HashMap<>();
+        try {
+            for (Map.Entry<String, Document> c : candidates.entrySet()) {
+                if (index != null && index.contains(c.getKey())) continue;
+                unindexed.put(c.getKey(), loadImageFeatures(detector, c.getValue()));
+            }
+            return unindexed.isEmpty() ? index : getIndex(filesDir, area, unindexed);
+        } finally {
+            for (ImageFeatures f : unindexed.values()) f.release();
+        }
+    }
+
+    // Retrieval index of the area with the path from memory or disk, or null if it has none yet
+    private static synchronized VocabularyTree loadIndex(File filesDir, String path) {
+        VocabularyTree index = indexes.get(path);
+        File file = getIndexFile(filesDir, path);
+        if (index != null || !file.exists()) return index;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            index = VocabularyTree.load(in);
+            indexes.put(path, index);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load route index", e);
+        }
+        return index;
+    }
+
+    // Load the retrieval index of the area with the path, training it on the features the first
+    // time, and add any of them that aren't indexed yet. Return null if there is nothing to train
+    // it on
+    private static synchronized VocabularyTree getIndex(File filesDir, String path,
+                                                        Map<String, ImageFeatures> features) {
+        File file = getIndexFile(filesDir, path);
+        VocabularyTree index = loadIndex(filesDir, path);
+
+        // Train the vocabulary on the descriptors of every candidate
+        if (index == null) {
+            List<Mat> descriptors = new ArrayList<>();
+            for (ImageFeatures f : features.values()) {
+                if (!f.descriptors.empty()) descriptors.add(f.descriptors);
+            }
+            if (descriptors.isEmpty()) return null;
+            Mat training = new Mat();
+            Core.vconcat(descriptors, training);
+            if (training.rows() > INDEX_BRANCHING) {
+                index = VocabularyTree.train(training, INDEX_BRANCHING, INDEX_DEPTH, 0);
+            }
+            training.release();
+            if (index == null) return null;
+        }
+        indexes.put(path, index);
+
+        boolean changed = false;
+        for (Map.Entry<String, ImageFeatures> f : features.entrySet()) {
+            if (!index.contains(f.getKey())) {
+                index.add(f.getKey(), f.getValue().descriptors);
+                changed = true;
+            }
+        }
+        if (changed) saveIndex(index, file);
+        return index;
+    }
+
+    // Add a newly uploaded route to the retrieval index of every area it's in that has one
+    public static synchronized void addToIndex(File filesDir, String path, String name,
+                                               ImageFeatures features) {
+        for (int end = path.indexOf(',', 1); end >= 0; end = path.indexOf(',', end + 1)) {
+            String area = path.substring(0, end + 1);
+            if (indexes.containsKey(area) || getIndexFile(filesDir, area).exists()) {
+                getIndex(filesDir, area, Collections.singletonMap(name, features));
+            }
+        }
+    }
+
+    private static File getIndexFile(File filesDir, String path) {
+        return new File(filesDir, String.format(Locale.US, INDEX_FILE, path.hashCode()));
+    }
+
+    private static void saveIndex(VocabularyTree index, File file) {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            index.save(out);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save route index", e);
+        }
+    }
+
     // Draw the route lines from the database onto the canvas bitmap
-    private Bitmap getBitmapRouteLines() {
+    private Bitmap getBitmapRouteLines(Document doc) {
         Canvas drawCanvas = new Canvas(canvasBitmap);
         Path drawPath = new Path();
 
@@ -183,7 +648,7 @@ public class PicturePreviewActivity extends AppCompatActivity {
         drawPaint.setStrokeCap(Paint.Cap.ROUND);
 
         // Draw the route path from the points array
-        ArrayList points = (ArrayList) image_doc.get("points");
+        ArrayList points = (ArrayList) doc.get("points");
         Document p0 = (Document) points.get(0);
         drawPath.moveTo(p0.getInteger("x"), p0.getInteger("y"));
         for (Object o : points) {
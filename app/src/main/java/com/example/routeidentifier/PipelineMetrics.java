@@ -0,0 +1,228 @@
+package com.example.routeidentifier;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Latency histograms of every stage of identifying a route, and histograms of the counts the
+// stages produce, like the matches that survive the ratio test. Everything is recorded without
+// locks, so stages on different threads can record at the same time, and can be queried in
+// process, dumped to a file, or compared across devices by the device label written with them.
+// Stages are also reported to a tracer, so they show up as sections in a system trace
+public final class PipelineMetrics {
+    // Stages of identifying a route, from taking the picture to drawing the route over it
+    public enum Stage {
+        CAPTURE("capture"),
+        DECODE("decode"),
+        GRAY("gray"),
+        DETECT_REFERENCE("detect_reference"),
+        DETECT_QUERY("detect_query"),
+        MATCH("match"),
+        RANSAC("ransac"),
+        WARP("warp"),
+        RENDER("render");
+
+        public final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    // Counts produced by the stages, recorded once per estimate
+    public enum Counter {
+        MATCHES("matches"),
+        RATIO_SURVIVORS("ratio_survivors"),
+        RANSAC_ITERATIONS("ransac_iterations"),
+        RANSAC_INLIERS("ransac_inliers");
+
+        public final String label;
+
+        Counter(String label) {
+            this.label = label;
+        }
+    }
+
+    // Receives the start and end of every timed stage on the thread that runs it, like
+    // android.os.Trace. Stages on one thread are always nested
+    public interface Tracer {
+        void beginSection(String name);
+        void endSection();
+    }
+
+    private static final Tracer NO_TRACER = new Tracer() {
+        @Override
+        public void beginSection(String name) {}
+
+        @Override
+        public void endSection() {}
+    };
+
+    private static final Histogram[] stages = new Histogram[Stage.values().length];
+    private static final Histogram[] counters = new Histogram[Counter.values().length];
+    static {
+        for (int i = 0; i < stages.length; i++) stages[i] = new Histogram();
+        for (int i = 0; i < counters.length; i++) counters[i] = new Histogram();
+    }
+
+    private static volatile Tracer tracer = NO_TRACER;
+    private static volatile String device = "unknown";
+
+    private PipelineMetrics() {}
+
+    // Report stages to a tracer, or stop reporting them if it's null
+    public static void setTracer(Tracer t) {
+        tracer = t == null ? NO_TRACER : t;
+    }
+
+    // Label of the device the metrics were recorded on, written with every dump
+    public static void setDevice(String label) {
+        device = label;
+    }
+
+    public static String getDevice() {
+        return device;
+    }
+
+    // Start timing a stage on the current thread. Pass the returned time to stop() on the same
+    // thread once the stage is done
+    public static long start(Stage stage) {
+        tracer.beginSection(stage.label);
+        return System.nanoTime();
+    }
+
+    public static void stop(Stage stage, long start) {
+        stages[stage.ordinal()].record(System.nanoTime() - start);
+        tracer.endSection();
+    }
+
+    // Record the latency of a stage that wasn't timed with start() and stop(), like one that
+    // starts and ends in different callbacks. It isn't traced
+    public static void record(Stage stage, long nanos) {
+        stages[stage.ordinal()].record(nanos);
+    }
+
+    public static void count(Counter counter, long value) {
+        counters[counter.ordinal()].record(value);
+    }
+
+    // Latencies of a stage in nanoseconds
+    public static Histogram get(Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    public static Histogram get(Counter counter) {
+        return counters[counter.ordinal()];
+    }
+
+    public static void reset() {
+        for (Histogram h : stages) h.reset();
+        for (Histogram h : counters) h.reset();
+    }
+
+    // Write every stage and counter as CSV, latencies in milliseconds
+    public static void dump(Writer writer) {
+        PrintWriter out = new PrintWriter(writer);
+        out.println("# device: " + device);
+        out.println("metric,unit,count,mean,p50,p95,p99,max");
+        for (Stage stage : Stage.values()) {
+            writeRow(out, stage.label, "ms", get(stage), 1e-6);
+        }
+        for (Counter counter : Counter.values()) {
+            writeRow(out, counter.label, "count", get(counter), 1);
+        }
+        out.flush();
+    }
+
+    // Dump to a file, replacing it
+    public static void dump(File file) throws IOException {
+        try (Writer writer = new FileWriter(file)) {
+            dump(writer);
+        }
+    }
+
+    private static void writeRow(PrintWriter out, String name, String unit, Histogram h,
+                                 double scale) {
+        out.println(String.format(Locale.US, "%s,%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f", name, unit,
+                h.getCount(), h.getMean() * scale, h.getPercentile(0.5) * scale,
+                h.getPercentile(0.95) * scale, h.getPercentile(0.99) * scale,
+                h.getMax() * scale));
+    }
+
+    // Histogram of non-negative values in buckets that grow with the values: every power of two is
+    // split into 8 equal buckets, so percentiles are within 12.5% of the true value whatever their
+    // magnitude, in a fixed 4KB. Values below 8 get a bucket each
+    public static final class Histogram {
+        private static final int SUB_BUCKETS = 8;
+        private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) value = 0;
+            buckets.incrementAndGet(bucket(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long m;
+            while (value > (m = max.get()) && !max.compareAndSet(m, value)) {}
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getMean() {
+            long n = count.get();
+            return n == 0 ? 0 : (double) sum.get() / n;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        // Value below which the fraction p of the recorded values lie, or 0 if there are none
+        public double getPercentile(double p) {
+            long n = count.get();
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(p * n));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) return Math.min(upperBound(i), max.get());
+            }
+            return max.get();
+        }
+
+        public void reset() {
+            for (int i = 0; i < BUCKETS; i++) buckets.set(i, 0);
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        // Values below SUB_BUCKETS map to themselves. Larger values map to the octave of their
+        // highest bit, split into SUB_BUCKETS linear steps by the bits below it
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int octave = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (octave - 3)) & (SUB_BUCKETS - 1);
+            return (octave - 2) * SUB_BUCKETS + sub;
+        }
+
+        // Largest value in a bucket
+        static double upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int octave = bucket / SUB_BUCKETS + 2;
+            int sub = bucket % SUB_BUCKETS;
+            return ((double) (SUB_BUCKETS + sub + 1) * (1L << (octave - 3))) - 1;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package com.example.routeidentifier;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// Estimates a homography with PROSAC (progressive sample consensus). Matches are sorted from the
+// most to the least distinctive, and samples are first drawn from the few best matches, then from
+// a slowly growing set of them, until sampling is uniform over all matches. The best matches are
+// far more likely to be inliers, so an all-inlier sample is usually found within the first few
+// iterations. Every new best homography is refit to its inliers, and sampling stops as soon as the
+// inlier ratio among the best matches means an all-inlier sample was drawn from them with the
+// required confidence, which on noisy photos happens long before the inlier ratio over all matches
+// would allow. Only the samples that were drawn from those matches count towards it, and at least
+// MIN_ITERATIONS samples are always drawn, so a homography that happens to fit the first few
+// matches isn't accepted on the strength of a single sample.
+public class ProsacSolver {
+    private static final int SAMPLE_SIZE = 4;
+
+    // Most least squares refits of a new best homography, and how much looser than the inlier
+    // threshold the matches used for them may be
+    private static final int LO_STEPS = 4;
+    private static final double LO_THRESHOLD_SCALE = 2;
+
+    // Probability that an outlier agrees with a wrong homography, and the one sided z-score the
+    // inliers of a set of matches must exceed to count as more than chance (5%)
+    private static final double RANDOM_INLIER_PROBABILITY = 0.01;
+    private static final double NON_RANDOM_Z = 1.645;
+
+    // Fewest matches sampling can stop on. A homography from a sample of nearby matches also fits
+    // a few more matches around them, so smaller sets say little about whether it's right
+    private static final int MIN_STOP_SIZE = 5 * SAMPLE_SIZE;
+    // Fewest samples drawn before sampling can stop
+    private static final int MIN_ITERATIONS = 50;
+
+    private final double threshold;
+    private final int maxIterations;
+    private final double confidence;
+    private final Random random;
+
+    // Reprojection threshold in pixels, the most samples to draw, and the confidence to stop at
+    public ProsacSolver(double threshold, int maxIterations, double confidence, long seed) {
+        this.threshold = threshold;
+        this.maxIterations = maxIterations;
+        this.confidence = confidence;
+        this.random = new Random(seed);
+    }
+
+    // Estimate the homography from the src to the dst points of the matches, or return null if
+    // there are too few matches or no sample gives a homography
+    public HomographyResult solve(Matches matches) {
+        int n = matches.size;
+        if (n < SAMPLE_SIZE) return null;
+
+        // Sample in normalized coordinates so the linear systems are well conditioned
+        double[] srcNorm = new double[3];
+        double[] dstNorm = new double[3];
+        double[] src = normalize(matches.src, n, srcNorm);
+        double[] dst = normalize(matches.dst, n, dstNorm);
+
+        // Number of samples PROSAC draws from the best m points before adding the next point,
+        // following the growth function of Chum and Matas
+        double tn = maxIterations;
+        for (int i = 0; i < SAMPLE_SIZE; i++) tn *= (double) (SAMPLE_SIZE - i) / (n - i);
+        int tnPrime = 1;
+        int m = SAMPLE_SIZE;
+
+        int[] sample = new int[SAMPLE_SIZE];
+        double[] h = new double[9];
+        byte[] mask = new byte[n];
+        byte[] refinedMask = new byte[n];
+        byte[] bestMask = new byte[n];
+        double[] best = null;
+        int bestInliers = 0;
+        // Samples of only the size best matches needed to stop on them, for every size, and the
+        // samples drawn by the time the sampling set grew past each size
+        int[] needed = new int[n + 1];
+        int[] drawnBefore = new int[n + 1];
+        Arrays.fill(needed, Integer.MAX_VALUE);
+        int t = 0;
+        while (t < maxIterations && (t < MIN_ITERATIONS || !converged(needed, drawnBefore, m, t))) {
+            t++;
+
+            // Add the next best match to the sampling set once enough samples were drawn from it
+            if (t > tnPrime && m < n) {
+                double next = tn * (m + 1) / (m + 1 - SAMPLE_SIZE);
+                tnPrime += (int) Math.ceil(next - tn);
+                tn = next;
+                drawnBefore[m] = t - 1;
+                m++;
+            }
+
+            // Draw a sample that includes the newest match, or a uniform one once all are used
+            if (tnPrime < t) {
+                drawDistinct(sample, SAMPLE_SIZE, m);
+            } else {
+                drawDistinct(sample, SAMPLE_SIZE - 1, m - 1);
+                sample[SAMPLE_SIZE - 1] = m - 1;
+            }
+            if (!fourPointHomography(src, dst, sample, h)) continue;
+
+            double[] H = denormalize(h, srcNorm, dstNorm);
+            int inliers = countInliers(H, matches, mask, threshold);
+            if (inliers <= bestInliers) continue;
+
+            // Refit a new best homography to the matches near it with least squares, which gains
+            // the inliers a minimal sample of nearby points misses, so sampling can stop sooner.
+            // Matches within a looser threshold are used, since a homography that is only right
+            // around the sample is off by more than the threshold further away
+            for (int step = 0; step < LO_STEPS; step++) {
+                int near = countInliers(H, matches, refinedMask, threshold * LO_THRESHOLD_SCALE);
+                double[] refined = refine(matches, refinedMask, near);
+                if (refined == null) break;
+                int refinedInliers = countInliers(refined, matches, refinedMask, threshold);
+                if (refinedInliers <= inliers) break;
+                H = refined;
+                inliers = refinedInliers;
+                System.arraycopy(refinedMask, 0, mask, 0, n);
+            }
+            bestInliers = inliers;
+            best = H;
+            System.arraycopy(mask, 0, bestMask, 0, n);
+
+            // Sampling can stop once enough samples were drawn from any set of best matches for
+            // one of them to have been all inliers with the required confidence, or from all
+            // matches like RANSAC. Sets with so few inliers that a wrong homography could have
+            // them by chance aren't considered
+            int prefixInliers = 0;
+            for (int size = 1; size <= n; size++) {
+                prefixInliers += bestMask[size - 1];
+                needed[size] = isStopSet(size, prefixInliers, n)
+                        ? HomographyResult.requiredIterations(prefixInliers, size, SAMPLE_SIZE,
+                                confidence, maxIterations)
+                        : Integer.MAX_VALUE;
+            }
+        }
+        if (best == null) return null;
+
+        // Report the confidence of the set of best matches with the most evidence, counting only
+        // the samples actually drawn from it
+        double conf = 0;
+        int prefixInliers = 0;
+        for (int size = 1; size <= n; size++) {
+            prefixInliers += bestMask[size - 1];
+            if (!isStopSet(size, prefixInliers, n)) continue;
+            conf = Math.max(conf, HomographyResult.confidence(prefixInliers, size, SAMPLE_SIZE,
+                    drawnFrom(drawnBefore, size, m, t)));
+        }
+
+        Mat H = MatScope.track(new Mat(3, 3, CvType.CV_64F));
+        H.put(0, 0, best);
+        return new HomographyResult(H, bestMask, bestInliers, conf, t);
+    }
+
+    // Whether sampling may stop on the size best matches when inliers of them fit the best
+    // homography
+    private static boolean isStopSet(int size, int inliers, int n) {
+        return size == n || (size >= MIN_STOP_SIZE && inliers >= minInliers(size));
+    }
+
+    // Whether enough samples were drawn from some set of best matches to stop on it, after t
+    // samples drawn from the m best
+    private static boolean converged(int[] needed, int[] drawnBefore, int m, int t) {
+        for (int size = SAMPLE_SIZE; size < needed.length; size++) {
+            if (drawnFrom(drawnBefore, size, m, t) >= needed[size]) return true;
+        }
+        return false;
+    }
+
+    // Number of the t samples drawn so far that only use the size best matches, while sampling
+    // from the m best. The sampling set grows one match at a time, so every smaller size has been
+    // passed through
+    private static int drawnFrom(int[] drawnBefore, int size, int m, int t) {
+        return size >= m ? t : drawnBefore[size];
+    }
+
+    // Fewest inliers among the size best matches for them not to be explained by chance. An outlier
+    // agrees with a wrong homography with a small probability, so the number of matches that agree
+    // by chance is binomial, approximated here by a normal distribution
+    private static double minInliers(int size) {
+        double trials = size - SAMPLE_SIZE;
+        double mean = trials * RANDOM_INLIER_PROBABILITY;
+        double sd = Math.sqrt(trials * RANDOM_INLIER_PROBABILITY * (1 - RANDOM_INLIER_PROBABILITY));
+        return SAMPLE_SIZE + mean + NON_RANDOM_Z * sd;
+    }
+
+    // Fill the first count entries of the sample with distinct indices below bound
+    private void drawDistinct(int[] sample, int count, int bound) {
+        for (int i = 0; i < count; i++) {
+            int index;
+            boolean repeated;
+            do {
+                index = random.nextInt(bound);
+                repeated = false;
+                for (int j = 0; j < i; j++) repeated |= sample[j] == index;
+            } while (repeated);
+            sample[i] = index;
+        }
+    }
+
+    // Count the matches whose dst point is within the threshold of the projected src point,
+    // flagging them in the mask
+    private static int countInliers(double[] H, Matches matches, byte[] mask, double threshold) {
+        double thresh2 = threshold * threshold;
+        float[] src = matches.src;
+        float[] dst = matches.dst;
+        int inliers = 0;
+        for (int i = 0; i < matches.size; i++) {
+            double x = src[i * 2];
+            double y = src[i * 2 + 1];
+            double w = H[6] * x + H[7] * y + H[8];
+            boolean inlier = false;
+            if (Math.abs(w) > 1e-12) {
+                double dx = (H[0] * x + H[1] * y + H[2]) / w - dst[i * 2];
+                double dy = (H[3] * x + H[4] * y + H[5]) / w - dst[i * 2 + 1];
+                inlier = dx * dx + dy * dy < thresh2;
+            }
+            if (inlier) inliers++;
+            mask[i] = (byte) (inlier ? 1 : 0);
+        }
+        return inliers;
+    }
+
+    // Least squares homography of the inliers, or null if it can't be computed
+    private static double[] refine(Matches matches, byte[] mask, int count) {
+        if (count < SAMPLE_SIZE) return null;
+        float[] src = new float[count * 2];
+        float[] dst = new float[count * 2];
+        int k = 0;
+        for (int i = 0; i < matches.size; i++) {
+            if (mask[i] == 0) continue;
+            src[k * 2] = matches.src[i * 2];
+            src[k * 2 + 1] = matches.src[i * 2 + 1];
+            dst[k * 2] = matches.dst[i * 2];
+            dst[k * 2 + 1] = matches.dst[i * 2 + 1];
+            k++;
+        }
+        try (MatScope scope = new MatScope()) {
+            Mat H = scope.add(Calib3d.findHomography(scope.add(Matches.toPointMat(src, count)),
+                    scope.add(Matches.toPointMat(dst, count))));
+            if (H.empty()) return null;
+            double[] h = new double[9];
+            H.get(0, 0, h);
+            return h;
+        }
+    }
+
+    // Solve for the homography mapping the four sampled src points onto their dst points, with
+    // its last entry fixed to 1. Return false if the points are degenerate
+    private static boolean fourPointHomography(double[] src, double[] dst, int[] sample, double[] h) {
+        double[][] a = new double[8][9];
+        for (int i = 0; i < SAMPLE_SIZE; i++) {
+            int p = sample[i];
+            double x = src[p * 2], y = src[p * 2 + 1];
+            double u = dst[p * 2], v = dst[p * 2 + 1];
+            double[] r1 = a[i * 2];
+            double[] r2 = a[i * 2 + 1];
+            r1[0] = x; r1[1] = y; r1[2] = 1; r1[6] = -u * x; r1[7] = -u * y; r1[8] = u;
+            r2[3] = x; r2[4] = y; r2[5] = 1; r2[6] = -v * x; r2[7] = -v * y; r2[8] = v;
+        }
+
+        // Gaussian elimination with partial pivoting
+        for (int col = 0; col < 8; col++) {
+            int pivot = col;
+            for (int r = col + 1; r < 8; r++) {
+                if (Math.abs(a[r][col]) > Math.abs(a[pivot][col])) pivot = r;
+            }
+            if (Math.abs(a[pivot][col]) < 1e-10) return false;
+            double[] tmp = a[col];
+            a[col] = a[pivot];
+            a[pivot] = tmp;
+            for (int r = col + 1; r < 8; r++) {
+                double f = a[r][col] / a[col][col];
+                for (int c = col; c < 9; c++) a[r][c] -= f * a[col][c];
+            }
+        }
+        for (int r = 7; r >= 0; r--) {
+            double sum = a[r][8];
+            for (int c = r + 1; c < 8; c++) sum -= a[r][c] * h[c];
+            h[r] = sum / a[r][r];
+        }
+        h[8] = 1;
+        return true;
+    }
+
+    // Translate the points to their centroid and scale them to an average distance of sqrt(2)
+    // from it, storing the centroid and scale in norm
+    private static double[] normalize(float[] points, int n, double[] norm) {
+        double cx = 0, cy = 0;
+        for (int i = 0; i < n; i++) {
+            cx += points[i * 2];
+            cy += points[i * 2 + 1];
+        }
+        cx /= n;
+        cy /= n;
+        double dist = 0;
+        for (int i = 0; i < n; i++) {
+            dist += Math.hypot(points[i * 2] - cx, points[i * 2 + 1] - cy);
+        }
+        double scale = (dist > 0) ? Math.sqrt(2) * n / dist : 1;
+
+        double[] normalized = new double[n * 2];
+        for (int i = 0; i < n; i++) {
+            normalized[i * 2] = (points[i * 2] - cx) * scale;
+            normalized[i * 2 + 1] = (points[i * 2 + 1] - cy) * scale;
+        }
+        norm[0] = cx;
+        norm[1] = cy;
+        norm[2] = scale;
+        return normalized;
+    }
+
+    // Convert a homography between normalized points into one between the original points,
+    // inv(Tdst) * h * Tsrc, scaled so its last entry is 1
+    private static double[] denormalize(double[] h, double[] srcNorm, double[] dstNorm) {
+        double s = srcNorm[2], sx = srcNorm[0], sy = srcNorm[1];
+        double d = dstNorm[2], dx = dstNorm[0], dy = dstNorm[1];
+
+        // h * Tsrc, where Tsrc = [s 0 -s*sx; 0 s -s*sy; 0 0 1]
+        double[] m = new double[9];
+        for (int r = 0; r < 3; r++) {
+            m[r * 3] = h[r * 3] * s;
+            m[r * 3 + 1] = h[r * 3 + 1] * s;
+            m[r * 3 + 2] = h[r * 3 + 2] - h[r * 3] * s * sx - h[r * 3 + 1] * s * sy;
+        }
+
+        // inv(Tdst) * m, where inv(Tdst) = [1/d 0 dx; 0 1/d dy; 0 0 1]
+        double[] H = new double[9];
+        for (int c = 0; c < 3; c++) {
+            H[c] = m[c] / d + dx * m[6 + c];
+            H[3 + c] = m[3 + c] / d + dy * m[6 + c];
+            H[6 + c] = m[6 + c];
+        }
+        double w = H[8];
+        if (Math.abs(w) > 1e-12) {
+            for (int i = 0; i < 9; i++) H[i] /= w;
+        }
+        return H;
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Matches one query photo against every reference image of an area and ranks the routes by the
+// number of RANSAC inliers of their homography
+public class RouteRanker {
+    // java.util.logging rather than android.util.Log, so the ranker also runs in the benchmarks
+    private static final Logger LOG = Logger.getLogger("RouteRanker");
+
+    // Minimum number of inliers for a route to count as a match
+    static final int MIN_INLIERS = 15;
+
+    // A route clearly wins once it has this many inliers and beats the runner-up by this factor,
+    // at which point the remaining candidates are skipped
+    private static final int CLEAR_WIN_INLIERS = 60;
+    private static final double CLEAR_WIN_RATIO = 2.0;
+
+    private final ExecutorService executor;
+
+    // Result of matching the query against one route
+    public static class Result {
+        public final String name;
+        public final Mat H;
+        public final int inliers;
+
+        Result(String name, Mat H, int inliers) {
+            this.name = name;
+            this.H = H;
+            this.inliers = inliers;
+        }
+    }
+
+    public RouteRanker(int nThreads) {
+        executor = Executors.newFixedThreadPool(nThreads);
+    }
+
+    // Rank the candidate routes by how well they match the query, best match first. Routes without
+    // enough inliers are left out, so the list is empty if no route matches. The homographies of
+    // the results have to be released by the caller with release()
+    public List<Result> rank(Map<String, ImageFeatures> candidates, ImageFeatures query)
+            throws InterruptedException {
+        // Match the query against every candidate in parallel. Candidates that haven't started
+        // when a route clearly wins are skipped
+        AtomicBoolean stopped = new AtomicBoolean();
+        CompletionService<Result> completion = new ExecutorCompletionService<>(executor);
+        // Route of each match, to say which one failed
+        Map<Future<Result>, String> futures = new HashMap<>();
+        for (Map.Entry<String, ImageFeatures> candidate : candidates.entrySet()) {
+            futures.put(completion.submit(() -> stopped.get()
+                    ? new Result(candidate.getKey(), null, 0)
+                    : match(candidate.getKey(), candidate.getValue(), query)), candidate.getKey());
+        }
+
+        // Collect the results as they finish, stopping early once a route clearly wins
+        List<Result> results = new ArrayList<>();
+        Result best = null;
+        int runnerUp = 0;
+        int collected = 0;
+        while (collected < futures.size()) {
+            Result r;
+            Future<Result> future = completion.take();
+            collected++;
+            try {
+                r = future.get();
+            } catch (ExecutionException e) {
+                // Skip the route, but don't hide why it couldn't be matched
+                LOG.log(Level.WARNING, "Failed to match " + futures.get(future), e.getCause());
+                continue;
+            }
+            if (r.inliers >= MIN_INLIERS) {
+                results.add(r);
+            } else {
+                MatScope.release(r.H);
+            }
+
+            // Keep track of the best and second best routes so far
+            if (best == null || r.inliers > best.inliers) {
+                runnerUp = (best == null) ? 0 : best.inliers;
+                best = r;
+            } else if (r.inliers > runnerUp) {
+                runnerUp = r.inliers;
+            }
+
+            if (best.inliers >= CLEAR_WIN_INLIERS && best.inliers >= CLEAR_WIN_RATIO * runnerUp) {
+                stopped.set(true);
+                break;
+            }
+        }
+
+        // Matches that were already running are left to finish in the background rather than
+        // cancelled, so their homographies can be released instead of waiting for the GC
+        int remaining = futures.size() - collected;
+        if (remaining > 0) {
+            executor.execute(() -> {
+                for (int i = 0; i < remaining; i++) {
+                    try {
+                        MatScope.release(completion.take().get().H);
+                    } catch (ExecutionException e) {
+                        // Nothing to release
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+        }
+
+        results.sort((r1, r2) -> r2.inliers - r1.inliers);
+        return results;
+    }
+
+    // Rank only the topK candidates that the index finds most similar to the query, so the cost of
+    // matching doesn't grow with the number of routes in the area
+    public List<Result> rank(Map<String, ImageFeatures> candidates, ImageFeatures query,
+                             VocabularyTree index, int topK) throws InterruptedException {
+        if (index == null || candidates.size() <= topK) return rank(candidates, query);
+
+        HashMap<String, ImageFeatures> shortlist = new HashMap<>();
+        for (String name : index.query(query.descriptors, topK, candidates.keySet())) {
+            shortlist.put(name, candidates.get(name));
+        }
+        return rank(shortlist, query);
+    }
+
+    // Release the homographies of ranked results
+    public static void release(List<Result> results) {
+        for (Result r : results) MatScope.release(r.H);
+    }
+
+    // Stop the worker threads
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    // Match the query against a single route
+    private static Result match(String name, ImageFeatures src, ImageFeatures query) {
+        HomographyResult result = FeatureDetector.findHomography(src, query);
+        if (result == null) return new Result(name, null, 0);
+        return new Result(name, result.H, result.inliers);
+    }
+}
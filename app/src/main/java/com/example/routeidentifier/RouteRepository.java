@@ -0,0 +1,260 @@
+package com.example.routeidentifier;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Tasks;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.stitch.android.services.mongodb.remote.RemoteMongoCollection;
+
+import org.bson.Document;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Answers the screens' lookups in the area hierarchy from the on-device RouteStore, and keeps the
+// store in sync with the route-data collection in the background. Lookups made before the store
+// has ever been synced wait for the first sync, and see nothing if it fails.
+//
+// A sync only downloads what changed. It first lists the name and update time of every document in
+// the collection, and downloads the ones that aren't stored yet or whose update time differs from
+// the stored one, so every writer has to set "updated" whenever it changes a document, like
+// DrawTopoActivity does. Documents written before update times were recorded have none, and count
+// as unchanged until they're written again with one. Stored documents that are no longer in the
+// collection are deleted. Lookups run on their own thread, so they aren't held up by a sync. If
+// the store can't be opened, the next lookup tries again.
+//
+// Names are searched in a SearchIndex of every stored document, which is built again in the
+// background whenever the store changes, and searched in memory meanwhile. Route counts come from
+// an AreaTree that's changed along with the store and saved with it, so it's only built from the
+// store if the saved one is missing or out of date
+public class RouteRepository {
+    private static final String TAG = "RouteRepository";
+
+    private static final String TREE_FILE = "area_tree.bin";
+
+    private final RouteStore store;
+    private final AreaTree tree = new AreaTree();
+    private final File treeFile;
+    private final RemoteMongoCollection<Document> remote;
+    private final ExecutorService queries = Executors.newSingleThreadExecutor();
+    private final ExecutorService syncer = Executors.newSingleThreadExecutor();
+
+    // Completed once the store has something to answer with
+    private final CompletableFuture<Void> firstSync = new CompletableFuture<>();
+    private CompletableFuture<Void> ready;
+    private CompletableFuture<Void> syncing;
+    // Subtrees being loaded, by path
+    private final ConcurrentHashMap<String, CompletableFuture<Subtree>> subtrees =
+            new ConcurrentHashMap<>();
+    // Latest index that was built, or the first while it's being built
+    private volatile CompletableFuture<SearchIndex> index;
+
+    public RouteRepository(Context context, RemoteMongoCollection<Document> remote) {
+        this.store = new RouteStore(context.getApplicationContext());
+        this.remote = remote;
+        treeFile = new File(context.getFilesDir(), TREE_FILE);
+        index = buildIndex();
+    }
+
+    // Routes anywhere under the area with the name, kept up to date as documents are added and
+    // removed. It's 0 until the first lookup has completed
+    public int getRouteCount(String id) {
+        return tree.getRouteCount(id);
+    }
+
+    // Document with the name, or null if there is none
+    public CompletableFuture<Document> get(String id) {
+        return ready().thenApplyAsync(v -> store.get(id), queries);
+    }
+
+    // Areas and routes directly in the area with the path
+    public CompletableFuture<ArrayList<Document>> getChildren(String path) {
+        return ready().thenApplyAsync(v -> store.getChildren(path), queries);
+    }
+
+    // Areas directly in the area with the path and what's directly in each of them, in two
+    // queries however many areas there are. Loads of a path that's already loading share it
+    public CompletableFuture<Subtree> getSubtree(String path) {
+        return subtrees.computeIfAbsent(path, p -> {
+            CompletableFuture<Subtree> load = ready().thenApplyAsync(v -> loadSubtree(p), queries);
+            load.whenComplete((subtree, e) -> subtrees.remove(p, load));
+            return load;
+        });
+    }
+
+    // Areas and routes anywhere under the area with the path
+    public CompletableFuture<ArrayList<Document>> getDescendants(String path) {
+        return ready().thenApplyAsync(v -> store.getDescendants(path), queries);
+    }
+
+    // At most limit documents with a word in their name that starts with the text. Once the
+    // first index is built, this completes right away on the calling thread
+    public CompletableFuture<ArrayList<Document>> search(String text, int limit) {
+        return getIndex().thenApply(i -> i.search(text, limit));
+    }
+
+    // Store a document that was just added to the collection, so it shows without a sync
+    public void put(Document doc) {
+        ArrayList<Document> docs = new ArrayList<>();
+        docs.add(doc);
+        queries.execute(() -> {
+            store.put(docs);
+            addToTree(doc);
+            saveTree();
+        });
+        updateIndex();
+    }
+
+    // Download the changes to the collection in the background. A sync that's already running is
+    // returned rather than starting another
+    public synchronized CompletableFuture<Void> sync() {
+        if (syncing == null || syncing.isDone()) {
+            syncing = CompletableFuture.runAsync(this::download, syncer);
+            syncing.whenComplete((v, e) -> {
+                if (e != null) Log.e(TAG, "Sync failed", e);
+                else updateIndex();
+                firstSync.complete(null);
+            });
+        }
+        return syncing;
+    }
+
+    // Completed once the store has been opened and has something to answer with. It's opened again
+    // if that failed, so one failure doesn't fail every lookup after it
+    private synchronized CompletableFuture<Void> ready() {
+        if (ready == null || ready.isCompletedExceptionally()) {
+            ready = CompletableFuture.supplyAsync(() -> {
+                loadTree();
+                return store.isEmpty();
+            }, queries).thenCompose(empty ->
+                    empty ? firstSync : CompletableFuture.completedFuture(null));
+            ready.whenComplete((v, e) -> {
+                if (e != null) Log.e(TAG, "Failed to open route store", e);
+            });
+        }
+        return ready;
+    }
+
+    // Latest index, built again if building it failed
+    private synchronized CompletableFuture<SearchIndex> getIndex() {
+        if (index.isCompletedExceptionally()) index = buildIndex();
+        return index;
+    }
+
+    private Subtree loadSubtree(String path) {
+        ArrayList<Document> children = store.getChildren(path);
+        HashMap<String, ArrayList<Document>> grandchildren = new HashMap<>();
+        HashMap<String, ArrayList<Document>> byPath = new HashMap<>();
+        for (Document d : children) {
+            ArrayList<Document> group = new ArrayList<>();
+            grandchildren.put(d.getString("_id"), group);
+            byPath.put(path + d.getString("_id") + ",", group);
+        }
+
+        // Group the grandchildren by their path, which is the path of their parent
+        for (Document d : store.getChildren(new ArrayList<>(byPath.keySet()))) {
+            byPath.get(d.getString("path")).add(d);
+        }
+        return new Subtree(children, grandchildren);
+    }
+
+    // Read the saved tree, or build it from the store if it doesn't match
+    private void loadTree() {
+        if (treeFile.exists()) {
+            try {
+                tree.read(treeFile);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read area tree", e);
+            }
+        }
+        if (tree.size() != store.count()) {
+            tree.clear();
+            for (Document d : store.getDescendants("")) addToTree(d);
+            saveTree();
+        }
+    }
+
+    private void addToTree(Document d) {
+        tree.add(d.getString("_id"), d.getString("path"), d.containsKey("grade"));
+    }
+
+    private void saveTree() {
+        try {
+            tree.save(treeFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save area tree", e);
+        }
+    }
+
+    private CompletableFuture<SearchIndex> buildIndex() {
+        return ready().thenApplyAsync(v -> new SearchIndex(store.getDescendants("")), queries);
+    }
+
+    // Build the index again, and search the old one until it's done
+    private void updateIndex() {
+        CompletableFuture<SearchIndex> next = buildIndex();
+        next.thenRun(() -> index = next);
+    }
+
+    private void download() {
+        try {
+            // Name and update time of every document in the collection, to find new, changed and
+            // deleted documents
+            ArrayList<Document> versions = Tasks.await(remote.find()
+                    .projection(Projections.include("_id", "updated")).into(new ArrayList<>()));
+
+            // Stored documents left once the collection's are taken out were deleted from it
+            Map<String, Long> deleted = store.getVersions();
+            Set<String> stale = new HashSet<>();
+            for (Document d : versions) {
+                String id = d.getString("_id");
+                long updated = RouteStore.getUpdated(d);
+                Long stored = deleted.remove(id);
+                if (stored == null || stored != updated) stale.add(id);
+            }
+
+            ArrayList<Document> changed = new ArrayList<>();
+            // Every document is downloaded without a filter when they all changed, like when nothing is
+            // stored yet
+            if (!stale.isEmpty() && stale.size() == versions.size()) {
+                Tasks.await(remote.find().into(changed));
+            } else if (!stale.isEmpty()) {
+                Tasks.await(remote.find(Filters.in("_id", stale)).into(changed));
+            }
+            store.put(changed);
+            for (Document d : changed) addToTree(d);
+
+            store.delete(deleted.keySet());
+            for (String id : deleted.keySet()) tree.remove(id);
+            saveTree();
+            Log.i(TAG, String.format("Synced %d changed and %d deleted documents",
+                    changed.size(), deleted.size()));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Two levels of the hierarchy under an area
+    public static class Subtree {
+        // Areas and routes directly in the area, by name
+        public final ArrayList<Document> children;
+        // What's directly in each child, by the child's name
+        public final HashMap<String, ArrayList<Document>> grandchildren;
+
+        Subtree(ArrayList<Document> children, HashMap<String, ArrayList<Document>> grandchildren) {
+            this.children = children;
+            this.grandchildren = grandchildren;
+        }
+    }
+}
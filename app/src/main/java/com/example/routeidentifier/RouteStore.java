@@ -0,0 +1,150 @@
+package com.example.routeidentifier;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// On-device copy of the route-data collection, so the area hierarchy can be browsed without a
+// connection. Documents are stored whole as JSON, next to their name and the path of their parent
+// area, which is indexed. Children of an area are the documents whose path is exactly the area's
+// own path, and descendants are the ones whose path starts with it, which is a range of the index
+// since paths are compared byte by byte
+public class RouteStore extends SQLiteOpenHelper {
+    private static final String NAME = "routes.db";
+    private static final int VERSION = 1;
+    // Most arguments SQLite takes in one statement
+    private static final int MAX_ARGS = 999;
+
+    public RouteStore(Context context) {
+        super(context, NAME, null, VERSION);
+        // Let the sync write while screens read
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE routes (id TEXT PRIMARY KEY, path TEXT NOT NULL, "
+                + "updated INTEGER NOT NULL, doc TEXT NOT NULL)");
+        db.execSQL("CREATE INDEX routes_path ON routes (path)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The store is only a copy, so it's simply synced again from scratch
+        db.execSQL("DROP TABLE IF EXISTS routes");
+        onCreate(db);
+    }
+
+    public boolean isEmpty() {
+        try (Cursor c = getReadableDatabase().rawQuery("SELECT 1 FROM routes LIMIT 1", null)) {
+            return !c.moveToFirst();
+        }
+    }
+
+    public int count() {
+        try (Cursor c = getReadableDatabase().rawQuery("SELECT COUNT(*) FROM routes", null)) {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        }
+    }
+
+    // Update time of every stored document by name, which is 0 for ones that don't have one
+    public Map<String, Long> getVersions() {
+        Map<String, Long> versions = new HashMap<>();
+        try (Cursor c = getReadableDatabase().rawQuery("SELECT id, updated FROM routes", null)) {
+            while (c.moveToNext()) versions.put(c.getString(0), c.getLong(1));
+        }
+        return versions;
+    }
+
+    // Document with the name, or null if there is none
+    public Document get(String id) {
+        ArrayList<Document> docs = query("SELECT doc FROM routes WHERE id = ?", id);
+        return docs.isEmpty() ? null : docs.get(0);
+    }
+
+    // Areas and routes directly in the area with the path, like ",States,Kentucky,"
+    public ArrayList<Document> getChildren(String path) {
+        return query("SELECT doc FROM routes WHERE path = ? ORDER BY id", path);
+    }
+
+    // Areas and routes directly in any of the areas with the paths, in one indexed query per
+    // MAX_ARGS paths
+    public ArrayList<Document> getChildren(List<String> paths) {
+        ArrayList<Document> docs = new ArrayList<>();
+        for (int i = 0; i < paths.size(); i += MAX_ARGS) {
+            List<String> batch = paths.subList(i, Math.min(paths.size(), i + MAX_ARGS));
+            StringBuilder sql = new StringBuilder("SELECT doc FROM routes WHERE path IN (");
+            for (int j = 0; j < batch.size(); j++) sql.append(j == 0 ? "?" : ", ?");
+            sql.append(") ORDER BY id");
+            docs.addAll(query(sql.toString(), batch.toArray(new String[0])));
+        }
+        return docs;
+    }
+
+    // Areas and routes anywhere under the area with the path
+    public ArrayList<Document> getDescendants(String path) {
+        if (path.isEmpty()) return query("SELECT doc FROM routes ORDER BY path, id");
+        return query("SELECT doc FROM routes WHERE path >= ? AND path < ? ORDER BY path, id",
+                path, nextPrefix(path));
+    }
+
+    // Add the documents, replacing stored ones with the same name
+    public void put(Collection<Document> docs) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (Document d : docs) {
+                values.put("id", d.getString("_id"));
+                values.put("path", d.getString("path"));
+                values.put("updated", getUpdated(d));
+                values.put("doc", d.toJson());
+                db.insertWithOnConflict("routes", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public void delete(Collection<String> ids) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (String id : ids) db.delete("routes", "id = ?", new String[]{id});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // Time the document was last changed, or 0 for documents written before it was recorded
+    public static long getUpdated(Document d) {
+        Object updated = d.get("updated");
+        return updated instanceof Number ? ((Number) updated).longValue() : 0;
+    }
+
+    private ArrayList<Document> query(String sql, String... args) {
+        ArrayList<Document> docs = new ArrayList<>();
+        try (Cursor c = getReadableDatabase().rawQuery(sql, args)) {
+            while (c.moveToNext()) docs.add(Document.parse(c.getString(0)));
+        }
+        return docs;
+    }
+
+    // Smallest string after every string that starts with the prefix
+    private static String nextPrefix(String prefix) {
+        int last = prefix.length() - 1;
+        return prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.routeidentifier;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+// Word prefix index over the names of areas and routes, for searching as the user types. Every
+// word of every name is kept in one sorted array, so the names with a word starting with some
+// text are a range of it found by binary search. A search matches the same names as looking for
+// the text at the start of any word of the name, ignoring case, without scanning them all.
+// Documents are kept sorted by name, so the first results in name order are simply the matches
+// with the lowest indices, and a search never sorts
+public class SearchIndex {
+    // Documents and their names in lower case, by name
+    private final Document[] docs;
+    private final String[] names;
+    // Every word of every name in lower case, sorted, and the document each is from
+    private final String[] words;
+    private final int[] owners;
+
+    public SearchIndex(Collection<Document> documents) {
+        // Sort the documents by name
+        Entry[] byName = new Entry[documents.size()];
+        int n = 0;
+        for (Document d : documents) {
+            byName[n] = new Entry(d.getString("_id").toLowerCase(Locale.ROOT), n);
+            n++;
+        }
+        Arrays.sort(byName);
+        Document[] unsorted = documents.toArray(new Document[0]);
+        docs = new Document[n];
+        names = new String[n];
+        List<Entry> byWord = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            docs[i] = unsorted[byName[i].doc];
+            names[i] = byName[i].key;
+            for (String word : names[i].split(" ")) {
+                if (!word.isEmpty()) byWord.add(new Entry(word, i));
+            }
+        }
+
+        // Sort the words, keeping track of the documents they're from
+        Collections.sort(byWord);
+        words = new String[byWord.size()];
+        owners = new int[byWord.size()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = byWord.get(i).key;
+            owners[i] = byWord.get(i).doc;
+        }
+    }
+
+    public int size() {
+        return docs.length;
+    }
+
+    // At most limit documents with a word in their name that starts with the text. Names that
+    // start with it come first, then the rest by name
+    public ArrayList<Document> search(String text, int limit) {
+        ArrayList<Document> results = new ArrayList<>();
+        String query = text.toLowerCase(Locale.ROOT);
+        String first = query.trim().split(" ")[0];
+        if (first.isEmpty()) return results;
+
+        // Names with a word starting with the first word of the text, which all the results have.
+        // If that's the whole text, they all match
+        boolean oneWord = first.equals(query);
+        BitSet matches = new BitSet(docs.length);
+        for (int i = lowerBound(first); i < words.length && words[i].startsWith(first); i++) {
+            int doc = owners[i];
+            if (!matches.get(doc) && (oneWord || matchesAtWord(names[doc], query))) {
+                matches.set(doc);
+            }
+        }
+
+        for (int doc = matches.nextSetBit(0); doc >= 0 && results.size() < limit;
+             doc = matches.nextSetBit(doc + 1)) {
+            if (names[doc].startsWith(query)) results.add(docs[doc]);
+        }
+        for (int doc = matches.nextSetBit(0); doc >= 0 && results.size() < limit;
+             doc = matches.nextSetBit(doc + 1)) {
+            if (!names[doc].startsWith(query)) results.add(docs[doc]);
+        }
+        return results;
+    }
+
+    // Whether the query starts at the start of the name or right after a space in it
+    private static boolean matchesAtWord(String name, String query) {
+        for (int i = name.indexOf(query); i >= 0; i = name.indexOf(query, i + 1)) {
+            if (i == 0 || name.charAt(i - 1) == ' ') return true;
+        }
+        return false;
+    }
+
+    // Index of the first word that isn't before the prefix
+    private int lowerBound(String prefix) {
+        int lo = 0, hi = words.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (words[mid].compareTo(prefix) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final String key;
+        final int doc;
+
+        Entry(String key, int doc) {
+            this.key = key;
+            this.doc = doc;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            return key.compareTo(o.key);
+        }
+    }
+}
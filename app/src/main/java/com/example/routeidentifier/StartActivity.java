@@ -2,10 +2,14 @@ package com.example.routeidentifier;
 
 import androidx.appcompat.app.AppCompatActivity;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.Configuration;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -20,13 +24,10 @@ import org.opencv.android.OpenCVLoader;
 
 import java.util.ArrayList;
 import java.util.Locale;
-import java.util.regex.Pattern;
 
-import com.mongodb.client.model.Filters;
 import com.mongodb.stitch.android.core.Stitch;
 import com.mongodb.stitch.android.core.StitchAppClient;
 import com.mongodb.stitch.android.core.auth.StitchUser;
-import com.mongodb.stitch.android.services.mongodb.remote.RemoteFindIterable;
 import com.mongodb.stitch.android.services.mongodb.remote.RemoteMongoClient;
 import com.mongodb.stitch.android.services.mongodb.remote.RemoteMongoCollection;
 import com.mongodb.stitch.core.auth.providers.anonymous.AnonymousCredential;
@@ -38,9 +39,21 @@ public class StartActivity extends AppCompatActivity {
     public static RemoteMongoClient mongoClient;
     public static RemoteMongoCollection<Document> coll;
     public static RemoteMongoCollection<Document> image_coll;
+    // Chunks of the route images, see ImageStore
+    public static RemoteMongoCollection<Document> image_blob_coll;
     public static StitchUser stitchUser;
+    // Local copy of coll that screens look up areas and routes in
+    public static RouteRepository repository;
     ArrayList<Document> suggestions;
 
+    // Search once typing pauses for this long, and show at most this many results
+    private static final long SEARCH_DEBOUNCE_MS = 50;
+    private static final int SEARCH_LIMIT = 20;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private Runnable pendingSearch;
+    // Incremented by every change of the search text, so results of older text can be dropped
+    private int searchGeneration;
+
     static {
         if (!OpenCVLoader.initDebug()) {
             // Handle initialization error
@@ -61,12 +74,16 @@ public class StartActivity extends AppCompatActivity {
             mongoClient = client.getServiceClient(RemoteMongoClient.factory, "mongodb-atlas");
             coll = mongoClient.getDatabase("iw-08").getCollection("route-data");
             image_coll = mongoClient.getDatabase("iw-08").getCollection("image-data");
+            image_blob_coll = mongoClient.getDatabase("iw-08").getCollection("image-blobs");
+            repository = new RouteRepository(this, coll);
+            releasePooledMatsOnTrim();
 
             // Authenticate with MongoDB
             client.getAuth().loginWithCredential(new AnonymousCredential())
                     .addOnSuccessListener(stitchUser -> {
                         Log.e(TAG, "Authenticated");
                         this.stitchUser = stitchUser;
+                        repository.sync();
                         setupApp();
                     });
         }
@@ -76,10 +93,32 @@ public class StartActivity extends AppCompatActivity {
 
     }
 
+    // Release the scratch buffers MatPool keeps whenever the system asks the app to trim its
+    // memory, which includes when it goes to the background, so a full resolution buffer isn't
+    // held for the life of the process
+    private void releasePooledMatsOnTrim() {
+        getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                MatPool.clear();
+            }
+
+            @Override
+            public void onLowMemory() {
+                MatPool.clear();
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {}
+        });
+    }
+
     private void setupApp() {
         // Get the views for the search bar and list to display search results
         final ListView listView = findViewById(R.id.search_list);
         SearchView searchView = findViewById(R.id.search_bar);
+        ArrayAdapter<Document> adapter = new MySimpleArrayAdapter(StartActivity.this, suggestions);
+        listView.setAdapter(adapter);
 
         // Handle queries from the search bar
         searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
@@ -90,22 +129,24 @@ public class StartActivity extends AppCompatActivity {
 
             @Override
             public boolean onQueryTextChange(String newText) {
-                // Clear current suggestions
-                suggestions.clear();
-
-                // Return if empty text
-                if (newText.equals("")) return true;
-
-                // Search database collection for search term
-                Pattern pattern = Pattern.compile("(^| )" + newText, Pattern.CASE_INSENSITIVE);
-                RemoteFindIterable<Document> query = coll.find(Filters.regex("_id", pattern));
-                ArrayList<Document> result = new ArrayList<>();
-                query.into(result).addOnSuccessListener(documents -> {
+                // Drop the search of the previous text if it hasn't run or finished yet
+                int search = ++searchGeneration;
+                handler.removeCallbacks(pendingSearch);
+
+                // Clear current suggestions if empty text
+                if (newText.equals("")) {
+                    adapter.clear();
+                    return true;
+                }
+
+                // Search the names in the local copy of the database for search term
+                pendingSearch = () -> repository.search(newText, SEARCH_LIMIT).thenAcceptAsync(documents -> {
+                    if (search != searchGeneration) return;
                     // Display results
-                    suggestions.addAll(documents);
-                    ArrayAdapter<Document> adapter = new MySimpleArrayAdapter(StartActivity.this, suggestions);
-                    listView.setAdapter(adapter);
-                });
+                    adapter.clear();
+                    adapter.addAll(documents);
+                }, StartActivity.this::runOnUiThread);
+                handler.postDelayed(pendingSearch, SEARCH_DEBOUNCE_MS);
 
                 return true;
             }
@@ -169,7 +210,8 @@ public class StartActivity extends AppCompatActivity {
             // Update the view with the search data
             Document search = searchData.get(position);
             txtName.setText(search.getString("_id"));
-            txtExtra.setText(String.format(Locale.US, "%d Areas", search.getInteger("n")));
+            txtExtra.setText(String.format(Locale.US, "%d Routes",
+                    repository.getRouteCount(search.getString("_id"))));
             txtType.setText("Area");
 
             return convertView;
@@ -0,0 +1,190 @@
+package com.example.routeidentifier;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+
+import androidx.exifinterface.media.ExifInterface;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// Decodes parts of a large photo on demand instead of the whole photo at full resolution. Regions
+// are given in the coordinates of the photo as displayed, after applying its EXIF rotation, and are
+// decoded from the encoded data with BitmapRegionDecoder, so at most one full resolution region is
+// ever in memory
+public class TiledImageSource {
+    // Rows of the downsampled image decoded at a time by decodeGray
+    private static final int STRIP_ROWS = 512;
+
+    private final BitmapRegionDecoder decoder;
+    // Clockwise rotation of the encoded image needed to display it
+    private final int rotation;
+    // Size of the encoded image, and of the image as displayed
+    private final int sourceWidth;
+    private final int sourceHeight;
+    private final int width;
+    private final int height;
+
+    private TiledImageSource(BitmapRegionDecoder decoder, int orientation) {
+        this.decoder = decoder;
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90: rotation = 90; break;
+            case ExifInterface.ORIENTATION_ROTATE_180: rotation = 180; break;
+            case ExifInterface.ORIENTATION_ROTATE_270: rotation = 270; break;
+            default: rotation = 0;
+        }
+        sourceWidth = decoder.getWidth();
+        sourceHeight = decoder.getHeight();
+        boolean swap = rotation == 90 || rotation == 270;
+        width = swap ? sourceHeight : sourceWidth;
+        height = swap ? sourceWidth : sourceHeight;
+    }
+
+    // Open an encoded JPEG or PNG with the given EXIF orientation
+    public static TiledImageSource open(byte[] data, int orientation) throws IOException {
+        return new TiledImageSource(BitmapRegionDecoder.newInstance(data, 0, data.length, false),
+                orientation);
+    }
+
+    public static TiledImageSource open(InputStream stream, int orientation) throws IOException {
+        return new TiledImageSource(BitmapRegionDecoder.newInstance(stream, false), orientation);
+    }
+
+    // Size of the image as displayed
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // Smallest power of two sample size that fits the image within size pixels
+    public int getSampleSize(int size) {
+        int sample = 1;
+        while (Math.max(width, height) / sample > size) sample *= 2;
+        return sample;
+    }
+
+    // Decode the whole image at a reduced resolution
+    public Bitmap decodePreview(int sampleSize) {
+        return decodeRegion(new Rect(0, 0, width, height), sampleSize);
+    }
+
+    // Decode a region of the displayed image, downsampled by sampleSize, which should be a power
+    // of two. Return null if the region is empty
+    public Bitmap decodeRegion(Rect region, int sampleSize) {
+        Bitmap bitmap = decodeSourceRegion(region, sampleSize);
+        if (bitmap == null || rotation == 0) return bitmap;
+
+        Matrix matrix = new Matrix();
+        matrix.postRotate(rotation);
+        Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(),
+                matrix, true);
+        if (rotated != bitmap) bitmap.recycle();
+        return rotated;
+    }
+
+    // Decode a region of the displayed image at full resolution as a gray Mat
+    public Mat decodeGrayRegion(Rect region) {
+        return decodeGrayRegion(region, 1);
+    }
+
+    // Decode a region of the displayed image as a gray Mat, downsampled by sampleSize
+    public Mat decodeGrayRegion(Rect region, int sampleSize) {
+        Bitmap bitmap = decodeSourceRegion(region, sampleSize);
+        if (bitmap == null) return null;
+        Mat gray = new Mat();
+        toGray(bitmap, gray);
+        bitmap.recycle();
+        return gray;
+    }
+
+    // Decode the whole displayed image as a gray Mat downsampled by sampleSize. It's decoded in
+    // strips, so the color pixels of only one strip are in memory at a time, and each strip is
+    // converted straight into its rows of the image
+    public Mat decodeGray(int sampleSize) {
+        Mat gray = Mat.zeros((height + sampleSize - 1) / sampleSize,
+                (width + sampleSize - 1) / sampleSize, CvType.CV_8UC1);
+        int strip = STRIP_ROWS * sampleSize;
+        boolean swap = rotation == 90 || rotation == 270;
+        for (int y = 0; y < height; y += strip) {
+            Bitmap bitmap = decodeSourceRegion(new Rect(0, y, width, Math.min(height, y + strip)),
+                    sampleSize);
+            if (bitmap == null) break;
+
+            int row = y / sampleSize;
+            int partRows = swap ? bitmap.getWidth() : bitmap.getHeight();
+            int partCols = swap ? bitmap.getHeight() : bitmap.getWidth();
+            if (row + partRows <= gray.rows() && partCols == gray.cols()) {
+                Mat dst = gray.submat(row, row + partRows, 0, partCols);
+                toGray(bitmap, dst);
+                dst.release();
+            } else {
+                // Decoded sizes can be rounded differently than the whole image
+                Mat part = new Mat();
+                toGray(bitmap, part);
+                int rows = Math.min(part.rows(), gray.rows() - row);
+                int cols = Math.min(part.cols(), gray.cols());
+                Mat dst = gray.submat(row, row + rows, 0, cols);
+                part.submat(0, rows, 0, cols).copyTo(dst);
+                dst.release();
+                part.release();
+            }
+            bitmap.recycle();
+        }
+        return gray;
+    }
+
+    // Release the decoder
+    public void recycle() {
+        decoder.recycle();
+    }
+
+    // Decode a region of the displayed image as it's encoded, without rotating it for display.
+    // Return null if the region is empty
+    private Bitmap decodeSourceRegion(Rect region, int sampleSize) {
+        Rect clipped = new Rect(region);
+        if (!clipped.intersect(0, 0, width, height)) return null;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        return decoder.decodeRegion(toSource(clipped), options);
+    }
+
+    // Convert a region from decodeSourceRegion to gray and rotate it for display, into gray. It's
+    // rotated after converting it to gray, which is cheaper than rotating the color bitmap
+    private void toGray(Bitmap bitmap, Mat gray) {
+        if (rotation == 0) {
+            ImagePreprocessor.toGray(bitmap, 1.0, gray);
+            return;
+        }
+        Mat encoded = MatPool.acquire(bitmap.getHeight(), bitmap.getWidth(), CvType.CV_8UC1);
+        ImagePreprocessor.toGray(bitmap, 1.0, encoded);
+        switch (rotation) {
+            case 90: Core.rotate(encoded, gray, Core.ROTATE_90_CLOCKWISE); break;
+            case 180: Core.rotate(encoded, gray, Core.ROTATE_180); break;
+            default: Core.rotate(encoded, gray, Core.ROTATE_90_COUNTERCLOCKWISE); break;
+        }
+        MatPool.recycle(encoded);
+    }
+
+    // Convert a region of the displayed image into the region of the encoded image it comes from
+    private Rect toSource(Rect r) {
+        switch (rotation) {
+            case 90: return new Rect(r.top, sourceHeight - r.right, r.bottom, sourceHeight - r.left);
+            case 180: return new Rect(sourceWidth - r.right, sourceHeight - r.bottom,
+                    sourceWidth - r.left, sourceHeight - r.top);
+            case 270: return new Rect(sourceWidth - r.bottom, r.left, sourceWidth - r.top, r.right);
+            default: return r;
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.Mat;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+// Bag-of-visual-words index over binary descriptors. Descriptors are quantized into visual words
+// by a hierarchical k-majority tree, and every word keeps an inverted file of the images it
+// appears in, so a query only touches the images that share words with it. Images are ranked by
+// the cosine similarity of their TF-IDF weighted word histograms, which are accumulated only for
+// the images in the inverted files of the query's words, so a query takes time in the number of
+// postings it reads rather than the number of indexed images.
+public class VocabularyTree {
+    private static final int MAGIC = 0x52495654; // "RIVT"
+    private static final int VERSION = 1;
+
+    // Number of k-majority iterations used to cluster each node
+    private static final int ITERATIONS = 10;
+
+    private final int branching;
+    private final int depth;
+    private final int descriptorBytes;
+    private final Node root;
+    private final int nWords;
+
+    // Inverted file for every word
+    private final Postings[] postings;
+
+    // Names and descriptor counts of the indexed images
+    private final ArrayList<String> imageNames = new ArrayList<>();
+    private final HashMap<String, Integer> imageIds = new HashMap<>();
+    private int[] imageTotals = new int[16];
+
+    // TF-IDF norms of the indexed images, recomputed after inserts since the IDF weights change
+    private double[] imageNorms = new double[0];
+    private boolean normsDirty = true;
+
+    // Scores of the images while a query runs, and the images that have one. Only those entries
+    // are read and cleared again, so the scores are allocated once rather than for every query
+    private double[] scores = new double[16];
+    private int[] scored = new int[16];
+
+    // Node of the tree. Leaves are the visual words
+    private static class Node {
+        long[] center;
+        Node[] children;
+        int word = -1;
+    }
+
+    // Images containing a word, and how many times each contains it
+    private static class Postings {
+        int[] images = new int[4];
+        int[] counts = new int[4];
+        int size;
+
+        void add(int image, int count) {
+            if (size == images.length) {
+                images = Arrays.copyOf(images, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            images[size] = image;
+            counts[size] = count;
+            size++;
+        }
+    }
+
+    private VocabularyTree(int branching, int depth, int descriptorBytes, Node root, int nWords) {
+        this.branching = branching;
+        this.depth = depth;
+        this.descriptorBytes = descriptorBytes;
+        this.root = root;
+        this.nWords = nWords;
+        this.postings = new Postings[nWords];
+        for (int i = 0; i < nWords; i++) postings[i] = new Postings();
+    }
+
+    // Build the vocabulary by recursively clustering the training descriptors (one binary
+    // descriptor per row) into branching clusters, depth levels deep
+    public static VocabularyTree train(Mat descriptors, int branching, int depth, long seed) {
+        int n = descriptors.rows();
+        int bytes = descriptors.cols();
+        long[][] data = unpack(descriptors);
+
+        int[] indices = new int[n];
+        for (int i = 0; i < n; i++) indices[i] = i;
+
+        int[] nWords = new int[1];
+        Node root = new Node();
+        root.center = new long[(bytes + 7) / 8];
+        build(root, data, indices, 0, n, 0, branching, depth, new Random(seed), nWords);
+        return new VocabularyTree(branching, depth, bytes, root, nWords[0]);
+    }
+
+    // Number of indexed images
+    public synchronized int size() {
+        return imageNames.size();
+    }
+
+    // Whether an image has already been indexed
+    public synchronized boolean contains(String name) {
+        return imageIds.containsKey(name);
+    }
+
+    // Add the descriptors of a newly uploaded image to the index
+    public synchronized void add(String name, Mat descriptors) {
+        if (contains(name) || descriptors.empty()) return;
+        if (descriptors.cols() != descriptorBytes) {
+            throw new IllegalArgumentException("Descriptor size doesn't match the vocabulary");
+        }
+
+        int image = imageNames.size();
+        imageNames.add(name);
+        imageIds.put(name, image);
+        if (image == imageTotals.length) imageTotals = Arrays.copyOf(imageTotals, image * 2);
+        imageTotals[image] = descriptors.rows();
+
+        // Add the image to the inverted file of each of its words
+        int[] words = quantize(descriptors);
+        Arrays.sort(words);
+        for (int i = 0; i < words.length; ) {
+            int j = i;
+            while (j < words.length && words[j] == words[i]) j++;
+            postings[words[i]].add(image, j - i);
+            i = j;
+        }
+        normsDirty = true;
+    }
+
+    // Find the names of the k indexed images most similar to the query descriptors, best first
+    public List<String> query(Mat descriptors, int k) {
+        return query(descriptors, k, null);
+    }
+
+    // Find the k most similar images among the allowed images, or among all images if it's null
+    public synchronized List<String> query(Mat descriptors, int k, Set<String> allowed) {
+        List<String> result = new ArrayList<>();
+        int nImages = imageNames.size();
+        if (nImages == 0 || descriptors.empty()) return result;
+        if (normsDirty) updateNorms();
+
+        // Histogram of the query words
+        int[] words = quantize(descriptors);
+        Arrays.sort(words);
+        double qTotal = words.length;
+
+        // Accumulate the dot product with every image that shares a word with the query. Words in
+        // every image have no weight, so every image that gets a score gets a positive one
+        if (scores.length < nImages) scores = new double[Math.max(nImages, scores.length * 2)];
+        int nScored = 0;
+        double qNorm = 0;
+        for (int i = 0; i < words.length; ) {
+            int j = i;
+            while (j < words.length && words[j] == words[i]) j++;
+            Postings p = postings[words[i]];
+            if (p.size > 0 && p.size < nImages) {
+                double idf = Math.log((double) nImages / p.size);
+                double q = (j - i) / qTotal * idf;
+                qNorm += q * q;
+                for (int t = 0; t < p.size; t++) {
+                    int image = p.images[t];
+                    if (scores[image] == 0) {
+                        if (nScored == scored.length) scored = Arrays.copyOf(scored, nScored * 2);
+                        scored[nScored++] = image;
+                    }
+                    scores[image] += q * ((double) p.counts[t] / imageTotals[image] * idf);
+                }
+            }
+            i = j;
+        }
+
+        // Keep the top k images by cosine similarity, clearing the scores for the next query
+        PriorityQueue<double[]> top = new PriorityQueue<>(k + 1, (a, b) -> Double.compare(a[0], b[0]));
+        for (int s = 0; s < nScored; s++) {
+            int image = scored[s];
+            double score = scores[image];
+            scores[image] = 0;
+            if (qNorm == 0 || imageNorms[image] == 0) continue;
+            if (allowed != null && !allowed.contains(imageNames.get(image))) continue;
+            top.add(new double[]{score / imageNorms[image], image});
+            if (top.size() > k) top.poll();
+        }
+        while (!top.isEmpty()) result.add(0, imageNames.get((int) top.poll()[1]));
+        return result;
+    }
+
+    // Write the vocabulary and the inverted files
+    public synchronized void save(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(branching);
+        out.writeInt(depth);
+        out.writeInt(descriptorBytes);
+        out.writeInt(nWords);
+        writeNode(out, root);
+
+        // Indexed images
+        int nImages = imageNames.size();
+        out.writeInt(nImages);
+        for (int i = 0; i < nImages; i++) {
+            out.writeUTF(imageNames.get(i));
+            out.writeInt(imageTotals[i]);
+        }
+
+        // Inverted files
+        for (Postings p : postings) {
+            out.writeInt(p.size);
+            for (int t = 0; t < p.size; t++) {
+                out.writeInt(p.images[t]);
+                out.writeInt(p.counts[t]);
+            }
+        }
+        out.flush();
+    }
+
+    // Read an index that was written with save
+    public static VocabularyTree load(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Unrecognized vocabulary tree format");
+        }
+        int branching = in.readInt();
+        int depth = in.readInt();
+        int descriptorBytes = in.readInt();
+        int nWords = in.readInt();
+        Node root = readNode(in, (descriptorBytes + 7) / 8);
+        VocabularyTree tree = new VocabularyTree(branching, depth, descriptorBytes, root, nWords);
+
+        int nImages = in.readInt();
+        tree.imageTotals = new int[Math.max(16, nImages)];
+        for (int i = 0; i < nImages; i++) {
+            String name = in.readUTF();
+            tree.imageIds.put(name, i);
+            tree.imageNames.add(name);
+            tree.imageTotals[i] = in.readInt();
+        }
+
+        for (Postings p : tree.postings) {
+            int size = in.readInt();
+            for (int t = 0; t < size; t++) {
+                p.add(in.readInt(), in.readInt());
+            }
+        }
+        return tree;
+    }
+
+    // Find the visual word of every descriptor by descending the tree to the nearest leaf
+    private int[] quantize(Mat descriptors) {
+        long[][] data = unpack(descriptors);
+        int[] words = new int[data.length];
+        for (int i = 0; i < data.length; i++) {
+            Node node = root;
+            while (node.children != null) {
+                Node nearest = node.children[0];
+                int best = Integer.MAX_VALUE;
+                for (Node child : node.children) {
+                    int d = hamming(data[i], child.center);
+                    if (d < best) {
+                        best = d;
+                        nearest = child;
+                    }
+                }
+                node = nearest;
+            }
+            words[i] = node.word;
+        }
+        return words;
+    }
+
+    // Recompute the TF-IDF norm of every image from the inverted files
+    private void updateNorms() {
+        int nImages = imageNames.size();
+        double[] norms = new double[nImages];
+        for (Postings p : postings) {
+            if (p.size == 0) continue;
+            double idf = Math.log((double) nImages / p.size);
+            for (int t = 0; t < p.size; t++) {
+                int image = p.images[t];
+                double w = (double) p.counts[t] / imageTotals[image] * idf;
+                norms[image] += w * w;
+            }
+        }
+        for (int i = 0; i < nImages; i++) norms[i] = Math.sqrt(norms[i]);
+        imageNorms = norms;
+        normsDirty = false;
+    }
+
+    // Cluster the descriptors indices[from, to) under the node
+    private static void build(Node node, long[][] data, int[] indices, int from, int to, int level,
+                              int branching, int depth, Random random, int[] nWords) {
+        int n = to - from;
+        if (level == depth || n <= branching) {
+            node.word = nWords[0]++;
+            return;
+        }
+
+        // Start from distinct random descriptors as the cluster centers
+        int words = data[0].length;
+        long[][] centers = new long[branching][];
+        for (int c = 0; c < branching; c++) {
+            int swap = from + c + random.nextInt(n - c);
+            int tmp = indices[from + c];
+            indices[from + c] = indices[swap];
+            indices[swap] = tmp;
+            centers[c] = data[indices[from + c]].clone();
+        }
+
+        // Alternate between assigning descriptors to the nearest center and setting each center
+        // bit to the majority vote of its cluster
+        int[] assignment = new int[n];
+        int[] clusterSizes = new int[branching];
+        int[][] bitCounts = new int[branching][words * 64];
+        for (int iter = 0; iter < ITERATIONS; iter++) {
+            boolean changed = false;
+            Arrays.fill(clusterSizes, 0);
+            for (int[] counts : bitCounts) Arrays.fill(counts, 0);
+
+            for (int i = 0; i < n; i++) {
+                long[] d = data[indices[from + i]];
+                int nearest = 0;
+                int best = Integer.MAX_VALUE;
+                for (int c = 0; c < branching; c++) {
+                    int dist = hamming(d, centers[c]);
+                    if (dist < best) {
+                        best = dist;
+                        nearest = c;
+                    }
+                }
+                if (iter == 0 || assignment[i] != nearest) changed = true;
+                assignment[i] = nearest;
+                clusterSizes[nearest]++;
+
+                int[] counts = bitCounts[nearest];
+                for (int w = 0; w < words; w++) {
+                    long bits = d[w];
+                    while (bits != 0) {
+                        counts[w * 64 + Long.numberOfTrailingZeros(bits)]++;
+                        bits &= bits - 1;
+                    }
+                }
+            }
+            if (!changed) break;
+
+            for (int c = 0; c < branching; c++) {
+                if (clusterSizes[c] == 0) continue;
+                long[] center = new long[words];
+                for (int b = 0; b < words * 64; b++) {
+                    if (2 * bitCounts[c][b] > clusterSizes[c]) center[b / 64] |= 1L << (b % 64);
+                }
+                centers[c] = center;
+            }
+        }
+
+        // Group the indices by cluster so every child owns a contiguous range
+        int[] sorted = new int[n];
+        int[] offsets = new int[branching + 1];
+        for (int c = 0; c < branching; c++) offsets[c + 1] = offsets[c] + clusterSizes[c];
+        int[] next = Arrays.copyOf(offsets, branching);
+        for (int i = 0; i < n; i++) sorted[next[assignment[i]]++] = indices[from + i];
+        System.arraycopy(sorted, 0, indices, from, n);
+
+        // Recurse into every non-empty cluster
+        ArrayList<Node> children = new ArrayList<>();
+        for (int c = 0; c < branching; c++) {
+            if (clusterSizes[c] == 0) continue;
+            Node child = new Node();
+            child.center = centers[c];
+            build(child, data, indices, from + offsets[c], from + offsets[c + 1], level + 1,
+                    branching, depth, random, nWords);
+            children.add(child);
+        }
+        node.children = children.toArray(new Node[0]);
+    }
+
+    private static void writeNode(DataOutputStream out, Node node) throws IOException {
+        for (long l : node.center) out.writeLong(l);
+        if (node.children == null) {
+            out.writeInt(-1);
+            out.writeInt(node.word);
+            return;
+        }
+        out.writeInt(node.children.length);
+        for (Node child : node.children) writeNode(out, child);
+    }
+
+    private static Node readNode(DataInputStream in, int words) throws IOException {
+        Node node = new Node();
+        node.center = new long[words];
+        for (int w = 0; w < words; w++) node.center[w] = in.readLong();
+        int nChildren = in.readInt();
+        if (nChildren == -1) {
+            node.word = in.readInt();
+            return node;
+        }
+        node.children = new Node[nChildren];
+        for (int c = 0; c < nChildren; c++) node.children[c] = readNode(in, words);
+        return node;
+    }
+
+    // Read binary descriptors (one per row) into packed 64 bit words
+    private static long[][] unpack(Mat descriptors) {
+        int n = descriptors.rows();
+        int bytes = descriptors.cols();
+        int words = (bytes + 7) / 8;
+        byte[] raw = new byte[n * bytes];
+        if (n > 0) descriptors.get(0, 0, raw);
+
+        long[][] data = new long[n][words];
+        for (int i = 0; i < n; i++) {
+            for (int b = 0; b < bytes; b++) {
+                data[i][b / 8] |= (raw[i * bytes + b] & 0xFFL) << ((b % 8) * 8);
+            }
+        }
+        return data;
+    }
+
+    private static int hamming(long[] a, long[] b) {
+        int d = 0;
+        for (int w = 0; w < a.length; w++) d += Long.bitCount(a[w] ^ b[w]);
+        return d;
+    }
+}
@@ -0,0 +1,213 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Estimates the bolt spacings of every photo in a directory without the app, using the same bolt
+// detection as MeasureBoltDistanceActivity. Bolts are measured in the boxes given for a photo in
+// the hints file, in order, or found automatically with BoltCandidateFinder when there are none.
+// Photos are measured on a few threads, and only as many photos are read as there are threads, so
+// memory stays bounded however large the archive is. Results are streamed to the output file and
+// photos already measured in it are skipped, so the run can be interrupted and started again.
+// Photos that couldn't be read or failed are measured again
+public class BatchBoltSpacing {
+    private static final String USAGE = "usage: batch <image dir> [--hints <csv>] "
+            + "[--out <file.csv|file.jsonl>] [--threads <n>] [--min-score <0-1>] [--max-bolts <n>]";
+
+    // Default settings for finding bolts automatically
+    private static final double DEFAULT_MIN_SCORE = 0.75;
+    private static final int DEFAULT_MAX_BOLTS = 12;
+
+    private final BatchHints hints;
+    private final double minScore;
+    private final int maxBolts;
+
+    BatchBoltSpacing(BatchHints hints, double minScore, int maxBolts) {
+        this.hints = hints;
+        this.minScore = minScore;
+        this.maxBolts = maxBolts;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path dir = null;
+        Path hintsFile = null;
+        Path out = Paths.get("bolt-spacings.csv");
+        int threads = Runtime.getRuntime().availableProcessors();
+        double minScore = DEFAULT_MIN_SCORE;
+        int maxBolts = DEFAULT_MAX_BOLTS;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--hints": hintsFile = Paths.get(args[++i]); break;
+                    case "--out": out = Paths.get(args[++i]); break;
+                    case "--threads": threads = Integer.parseInt(args[++i]); break;
+                    case "--min-score": minScore = Double.parseDouble(args[++i]); break;
+                    case "--max-bolts": maxBolts = Integer.parseInt(args[++i]); break;
+                    default:
+                        if (args[i].startsWith("--") || dir != null) throw new IllegalArgumentException();
+                        dir = Paths.get(args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            dir = null;
+        }
+        if (dir == null || threads < 1) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        nu.pattern.OpenCV.loadLocally();
+        BatchHints hints = hintsFile == null ? new BatchHints() : BatchHints.read(hintsFile);
+        new BatchBoltSpacing(hints, minScore, maxBolts).run(dir, out, threads);
+    }
+
+    // Measure every photo in the directory that isn't in the output file yet
+    void run(Path dir, Path out, int threads) throws IOException, InterruptedException {
+        List<Path> images;
+        try (Stream<Path> files = Files.list(dir)) {
+            images = files.filter(BatchBoltSpacing::isImage).sorted().collect(Collectors.toList());
+        }
+
+        try (BatchResultWriter results = BatchResultWriter.open(out)) {
+            int skipped = 0;
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            Semaphore inFlight = new Semaphore(threads);
+            AtomicInteger measured = new AtomicInteger();
+            for (Path image : images) {
+                String name = image.getFileName().toString();
+                if (results.isDone(name)) {
+                    skipped++;
+                    continue;
+                }
+
+                // Wait until a thread is free, so photos are only read when they can be measured
+                inFlight.acquire();
+                executor.execute(() -> {
+                    try {
+                        results.write(measure(image));
+                        int n = measured.incrementAndGet();
+                        if (n % 100 == 0) System.err.println("Measured " + n + " photos");
+                    } catch (IOException e) {
+                        System.err.println("Couldn't write the result of " + name + ": " + e);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            System.err.println(String.format(Locale.US,
+                    "Measured %d photos, skipped %d measured by an earlier run", measured.get(),
+                    skipped));
+        }
+    }
+
+    // Measure the bolts of one photo and the spacings between them. Errors are recorded in the
+    // result rather than stopping the run
+    BatchResultWriter.Result measure(Path image) {
+        String name = image.getFileName().toString();
+        List<double[]> boxes = hints.get(name);
+        String mode = boxes.isEmpty() ? "auto" : "hints";
+
+        Mat gray = Imgcodecs.imread(image.toString(), Imgcodecs.IMREAD_GRAYSCALE);
+        if (gray.empty()) return new BatchResultWriter.Result(name, "unreadable", mode, 0, new double[0]);
+        try {
+            List<Rect> boltBoxes = boxes.isEmpty() ? findBoltBoxes(gray) : toRects(boxes, gray);
+
+            BoltSequence bolts = new BoltSequence();
+            Rect bounds = new Rect(0, 0, gray.cols(), gray.rows());
+            for (Rect box : boltBoxes) {
+                Rect clipped = intersect(box, bounds);
+                if (clipped == null) continue;
+                Mat grayBox = gray.submat(clipped);
+                BoltDetector.Bolt bolt = bolts.add(grayBox, clipped.x, clipped.y);
+                if (bolt != null) bolt.release();
+                grayBox.release();
+            }
+
+            double[] spacings = new double[Math.max(0, bolts.size() - 1)];
+            for (int i = 1; i < bolts.size(); i++) spacings[i - 1] = bolts.getSpacingFeet(i);
+            String status = bolts.size() > 1 ? "ok" : "too_few_bolts";
+            return new BatchResultWriter.Result(name, status, mode, bolts.size(), spacings);
+        } catch (RuntimeException e) {
+            System.err.println("Couldn't measure " + name + ": " + e);
+            return new BatchResultWriter.Result(name, "error", mode, 0, new double[0]);
+        } finally {
+            gray.release();
+        }
+    }
+
+    // Boxes around the best bolt candidates, from the bottom of the photo to the top, the way the
+    // app measures the candidates a user confirms
+    private List<Rect> findBoltBoxes(Mat gray) {
+        // Scan at the same resolution as the app
+        int sample = 1;
+        while (Math.max(gray.cols(), gray.rows()) / sample > BoltCandidateFinder.SCAN_SIZE) {
+            sample *= 2;
+        }
+        Mat scan = gray;
+        if (sample > 1) {
+            scan = new Mat();
+            Imgproc.resize(gray, scan, new Size(), 1.0 / sample, 1.0 / sample, Imgproc.INTER_AREA);
+        }
+        List<BoltCandidateFinder.Candidate> found = BoltCandidateFinder.find(scan);
+        if (scan != gray) scan.release();
+
+        List<BoltCandidateFinder.Candidate> confident = new ArrayList<>();
+        for (BoltCandidateFinder.Candidate c : found) {
+            if (c.score >= minScore && confident.size() < maxBolts) confident.add(c.scaled(sample));
+        }
+        confident.sort((c1, c2) -> Double.compare(c2.y, c1.y));
+
+        List<Rect> boxes = new ArrayList<>(confident.size());
+        for (BoltCandidateFinder.Candidate c : confident) boxes.add(c.getBox());
+        return boxes;
+    }
+
+    // Boxes given as fractions of the photo's width and height, in pixels
+    private static List<Rect> toRects(List<double[]> boxes, Mat gray) {
+        List<Rect> rects = new ArrayList<>(boxes.size());
+        for (double[] box : boxes) {
+            int left = (int) (box[0] * gray.cols());
+            int top = (int) (box[1] * gray.rows());
+            int right = (int) (box[2] * gray.cols());
+            int bottom = (int) (box[3] * gray.rows());
+            rects.add(new Rect(left, top, right - left, bottom - top));
+        }
+        return rects;
+    }
+
+    // Part of a box inside the bounds, or null if there is none
+    private static Rect intersect(Rect box, Rect bounds) {
+        int left = Math.max(box.x, bounds.x);
+        int top = Math.max(box.y, bounds.y);
+        int right = Math.min(box.x + box.width, bounds.x + bounds.width);
+        int bottom = Math.min(box.y + box.height, bounds.y + bounds.height);
+        if (right <= left || bottom <= top) return null;
+        return new Rect(left, top, right - left, bottom - top);
+    }
+
+    private static boolean isImage(Path file) {
+        String name = file.getFileName().toString().toLowerCase(Locale.US);
+        return Files.isRegularFile(file)
+                && (name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png"));
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.routeidentifier;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Boxes around the bolts of each image, read from a CSV file with lines of
+//   file,left,top,right,bottom
+// where file is the name of the image and the box is given as fractions of its width and height.
+// The bolts of an image are listed in order along the route. Lines starting with # are ignored
+class BatchHints {
+    private final Map<String, List<double[]>> boxes = new HashMap<>();
+
+    static BatchHints read(Path file) throws IOException {
+        BatchHints hints = new BatchHints();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+
+                // The file name may itself contain commas, so read the box from the end
+                int split = line.length();
+                for (int i = 0; i < 4 && split > 0; i++) split = line.lastIndexOf(',', split - 1);
+                if (split <= 0) {
+                    throw new IOException(file + ":" + lineNumber
+                            + ": expected file,left,top,right,bottom");
+                }
+                String name = line.substring(0, split).trim();
+                String[] fields = line.substring(split + 1).split(",", -1);
+                double[] box = new double[4];
+                try {
+                    for (int i = 0; i < 4; i++) box[i] = Double.parseDouble(fields[i].trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException(file + ":" + lineNumber + ": " + e.getMessage());
+                }
+                hints.boxes.computeIfAbsent(name, k -> new ArrayList<>()).add(box);
+            }
+        }
+        return hints;
+    }
+
+    // Boxes around the bolts of an image in order along the route, or an empty list if it has no
+    // hints and its bolts should be found automatically
+    List<double[]> get(String name) {
+        List<double[]> b = boxes.get(name);
+        return b == null ? Collections.emptyList() : b;
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.routeidentifier;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+// Streams one line per measured image to a CSV or JSONL file, flushing after every line. An
+// existing file is appended to, and the images it already lists as measured are skipped, so an
+// interrupted run picks up where it stopped. Images that couldn't be read or failed are measured
+// again, and their new line follows the old one. A line cut off by the interruption is removed
+// before appending
+class BatchResultWriter implements AutoCloseable {
+    enum Format { CSV, JSONL }
+
+    private static final String CSV_HEADER = "file,status,mode,bolts,spacings_feet";
+
+    // Result of measuring one image
+    static class Result {
+        final String file;
+        // ok, too_few_bolts, unreadable or error
+        final String status;
+        // hints or auto
+        final String mode;
+        final int bolts;
+        // Spacing between each pair of consecutive bolts
+        final double[] spacingsFeet;
+
+        Result(String file, String status, String mode, int bolts, double[] spacingsFeet) {
+            this.file = file;
+            this.status = status;
+            this.mode = mode;
+            this.bolts = bolts;
+            this.spacingsFeet = spacingsFeet;
+        }
+    }
+
+    private final Format format;
+    private final Writer writer;
+    private final Set<String> done;
+
+    private BatchResultWriter(Format format, Writer writer, Set<String> done) {
+        this.format = format;
+        this.writer = writer;
+        this.done = done;
+    }
+
+    // Open the output file, picking the format from its extension
+    static BatchResultWriter open(Path file) throws IOException {
+        Format format = file.toString().toLowerCase(Locale.US).endsWith(".jsonl")
+                ? Format.JSONL : Format.CSV;
+        Set<String> done = new HashSet<>();
+        boolean exists = Files.exists(file) && Files.size(file) > 0;
+        if (exists) {
+            truncatePartialLine(file);
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.equals(CSV_HEADER)) continue;
+                    String name = format == Format.CSV ? readCsvFile(line) : readJsonFile(line);
+                    if (name != null && isMeasured(readStatus(format, line))) done.add(name);
+                }
+            }
+        }
+
+        Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        BatchResultWriter results = new BatchResultWriter(format, writer, done);
+        if (format == Format.CSV && !exists) results.writeLine(CSV_HEADER);
+        return results;
+    }
+
+    // Whether an earlier run already measured the image
+    boolean isDone(String file) {
+        return done.contains(file);
+    }
+
+    synchronized void write(Result result) throws IOException {
+        StringBuilder line = new StringBuilder();
+        if (format == Format.CSV) {
+            StringBuilder spacings = new StringBuilder();
+            for (double feet : result.spacingsFeet) {
+                if (spacings.length() > 0) spacings.append(';');
+                spacings.append(String.format(Locale.US, "%.2f", feet));
+            }
+            line.append(csvField(result.file)).append(',').append(result.status).append(',')
+                    .append(result.mode).append(',').append(result.bolts).append(',')
+                    .append(spacings);
+        } else {
+            line.append("{\"file\":").append(jsonString(result.file))
+                    .append(",\"status\":\"").append(result.status)
+                    .append("\",\"mode\":\"").append(result.mode)
+                    .append("\",\"bolts\":").append(result.bolts)
+                    .append(",\"spacings_feet\":[");
+            for (int i = 0; i < result.spacingsFeet.length; i++) {
+                if (i > 0) line.append(',');
+                line.append(String.format(Locale.US, "%.2f", result.spacingsFeet[i]));
+            }
+            line.append("]}");
+        }
+        writeLine(line.toString());
+        if (isMeasured(result.status)) done.add(result.file);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    private void writeLine(String line) throws IOException {
+        writer.write(line);
+        writer.write('\n');
+        writer.flush();
+    }
+
+    // Whether a result with the status is final, rather than a failure worth trying again
+    private static boolean isMeasured(String status) {
+        return "ok".equals(status) || "too_few_bolts".equals(status);
+    }
+
+    // Remove whatever follows the last newline, which is a line that was being written when an
+    // earlier run was interrupted
+    private static void truncatePartialLine(Path file) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        int end = data.length;
+        while (end > 0 && data[end - 1] != '\n') end--;
+        if (end == data.length) return;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(end);
+        }
+    }
+
+    // Quote a CSV field if it needs it
+    private static String csvField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    // First field of a CSV line
+    private static String readCsvFile(String line) {
+        if (!line.startsWith("\"")) {
+            int comma = line.indexOf(',');
+            return comma < 0 ? null : line.substring(0, comma);
+        }
+        StringBuilder value = new StringBuilder();
+        for (int i = 1; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c != '"') {
+                value.append(c);
+            } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                value.append('"');
+                i++;
+            } else {
+                return value.toString();
+            }
+        }
+        return null;
+    }
+
+    // Status of a line. It's the fourth field from the end of a CSV line, since only the file
+    // name can contain commas, and follows the file key of a JSONL line
+    private static String readStatus(Format format, String line) {
+        if (format == Format.CSV) {
+            String[] fields = line.split(",", -1);
+            return fields.length < 5 ? null : fields[fields.length - 4];
+        }
+        String key = "\",\"status\":\"";
+        int start = line.indexOf(key);
+        if (start < 0) return null;
+        start += key.length();
+        int end = line.indexOf('"', start);
+        return end < 0 ? null : line.substring(start, end);
+    }
+
+    private static String jsonString(String value) {
+        StringBuilder json = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') json.append('\\').append(c);
+            else if (c < 0x20) json.append(String.format("\\u%04x", (int) c));
+            else json.append(c);
+        }
+        return json.append('"').toString();
+    }
+
+    // Value of the file key, which is always written first, of a JSONL line
+    private static String readJsonFile(String line) {
+        String prefix = "{\"file\":\"";
+        if (!line.startsWith(prefix)) return null;
+        StringBuilder value = new StringBuilder();
+        for (int i = prefix.length(); i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') return value.toString();
+            if (c != '\\' || i + 1 >= line.length()) {
+                value.append(c);
+                continue;
+            }
+            char escaped = line.charAt(++i);
+            if (escaped == 'u' && i + 4 < line.length()) {
+                value.append((char) Integer.parseInt(line.substring(i + 1, i + 5), 16));
+                i += 4;
+            } else {
+                value.append(escaped);
+            }
+        }
+        return null;
+    }
+}
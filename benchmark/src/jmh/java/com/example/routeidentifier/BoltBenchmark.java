@@ -0,0 +1,65 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+// Measuring a bolt in the box the user zoomed to, either filtering the box or reading its edges
+// from an edge map of the whole photo built beforehand. The box covers the same part of the photo
+// at every size, so larger photos mean more pixels per box
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BoltBenchmark {
+    // Largest dimension of the photo
+    @Param({"1024", "2048", "4096"})
+    public int size;
+
+    // Which of the bolts in the photo to measure
+    @Param({"0", "1"})
+    public int bolt;
+
+    private Mat box;
+    private Rect boxRect;
+    private EdgeMap edgeMap;
+
+    @Setup
+    public void setup() {
+        Mat gray = Fixtures.toGray(Fixtures.loadRgba(Fixtures.BOLT_PHOTO, size));
+        box = Fixtures.boltBox(gray, Fixtures.BOLT_BOXES[bolt]);
+        boxRect = Fixtures.boltRect(gray, Fixtures.BOLT_BOXES[bolt]);
+        edgeMap = new EdgeMap(region -> gray.submat(region).clone(), gray.cols(), gray.rows());
+        edgeMap.build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        edgeMap.release();
+    }
+
+    @Benchmark
+    public BoltDetector.Bolt detectBolt() {
+        BoltDetector.Bolt bolt = BoltDetector.detect(box);
+        if (bolt != null) bolt.release();
+        return bolt;
+    }
+
+    @Benchmark
+    public BoltDetector.Bolt detectBoltInEdgeMap() {
+        Mat edges = edgeMap.getRegion(boxRect);
+        BoltDetector.Bolt bolt = BoltDetector.detectInEdges(edges);
+        edges.release();
+        if (bolt != null) bolt.release();
+        return bolt;
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+// Scanning the whole bolt photo for bolt candidates, with the tiles run on one thread or several
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BoltCandidateBenchmark {
+    // Largest dimension of the photo
+    @Param({"1024", "2048", "4096"})
+    public int size;
+
+    // Threads the tiles are run on
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private Mat gray;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setup() {
+        gray = Fixtures.toGray(Fixtures.loadRgba(Fixtures.BOLT_PHOTO, size));
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public List<BoltCandidateFinder.Candidate> findCandidates() {
+        return BoltCandidateFinder.find(gray, pool);
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.MatOfPoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// Measuring the diameter of a bolt outline. Noisy crops of high resolution photos give outlines
+// with tens of thousands of points, so outlines of up to that many points are measured
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BoltDiameterBenchmark {
+    // Points in the outline
+    @Param({"100", "1000", "10000", "50000"})
+    public int points;
+
+    private MatOfPoint contour;
+    private int boxRows;
+
+    @Setup
+    public void setup() {
+        contour = Fixtures.boltOutline(points);
+        boxRows = points / 2;
+    }
+
+    @Benchmark
+    public BoltDetector.Bolt getDiameter() {
+        return BoltDetector.getDiameter(contour, boxRows);
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.features2d.AKAZE;
+import org.opencv.features2d.KAZE;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+// Images the benchmarks run on. The topo photos are the ones checked into the app, and the query
+// shots are made from them with a fixed perspective change, lighting change and sensor noise, so
+// every run measures exactly the same pixels and the true homography is known
+final class Fixtures {
+    static {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    static final String BOLT_PHOTO = "boltsample.jpg";
+
+    // Boxes around the two bolts in the bolt photo, as fractions of its width and height
+    static final double[][] BOLT_BOXES = {
+            {0.35, 0.355, 0.40, 0.39},
+            {0.41, 0.73, 0.46, 0.77}
+    };
+
+    // A topo photo and a query shot of it
+    static class Pair {
+        final Mat srcColor;
+        final Mat srcGray;
+        final Mat queryGray;
+        // Homography taking src coordinates to query coordinates
+        final Mat H;
+
+        Pair(Mat srcColor, Mat srcGray, Mat queryGray, Mat H) {
+            this.srcColor = srcColor;
+            this.srcGray = srcGray;
+            this.queryGray = queryGray;
+            this.H = H;
+        }
+    }
+
+    private Fixtures() {}
+
+    // Directory the fixture photos are read from, set by the benchmark build
+    static File dir() {
+        return new File(System.getProperty("fixtures.dir", "app/src/main/res/drawable-v24"));
+    }
+
+    // Load a color photo as RGBA, the layout a Bitmap has, resized so its largest dimension is size
+    static Mat loadRgba(String name, int size) {
+        File file = new File(dir(), name);
+        Mat bgr = Imgcodecs.imread(file.getPath(), Imgcodecs.IMREAD_COLOR);
+        if (bgr.empty()) throw new IllegalStateException("Couldn't read fixture " + file);
+
+        double scale = (double) size / Math.max(bgr.cols(), bgr.rows());
+        Mat resized = new Mat();
+        Imgproc.resize(bgr, resized, new Size(), scale, scale,
+                scale < 1 ? Imgproc.INTER_AREA : Imgproc.INTER_LINEAR);
+        Mat rgba = new Mat();
+        Imgproc.cvtColor(resized, rgba, Imgproc.COLOR_BGR2RGBA);
+        return rgba;
+    }
+
+    static Mat toGray(Mat rgba) {
+        Mat gray = new Mat();
+        Imgproc.cvtColor(rgba, gray, Imgproc.COLOR_RGBA2GRAY);
+        return gray;
+    }
+
+    // Load a topo photo and make a query shot of it
+    static Pair loadPair(String name, int size) {
+        return makePair(loadRgba(name, size));
+    }
+
+    // Make a query shot of a color photo
+    static Pair makePair(Mat srcColor) {
+        Mat srcGray = toGray(srcColor);
+        int w = srcGray.cols();
+        int h = srcGray.rows();
+
+        // Move the corners as if the photo was taken from lower down and slightly to the side
+        MatOfPoint2f corners = new MatOfPoint2f(
+                new Point(0, 0), new Point(w, 0), new Point(w, h), new Point(0, h));
+        MatOfPoint2f moved = new MatOfPoint2f(
+                new Point(0.06 * w, 0.04 * h), new Point(0.97 * w, 0.0),
+                new Point(0.92 * w, 0.96 * h), new Point(0.02 * w, 0.9 * h));
+        Mat H = Imgproc.getPerspectiveTransform(corners, moved);
+
+        // Warp it, make it darker with less contrast, and add noise
+        Mat query = new Mat();
+        Imgproc.warpPerspective(srcGray, query, H, srcGray.size(), Imgproc.INTER_LINEAR,
+                Core.BORDER_REPLICATE, new Scalar(0));
+        query.convertTo(query, -1, 0.85, -10);
+        Mat noise = new Mat(query.size(), CvType.CV_16S);
+        Core.setRNGSeed(42);
+        Core.randn(noise, 0, 6);
+        Mat noisy = new Mat();
+        query.convertTo(noisy, CvType.CV_16S);
+        Core.add(noisy, noise, noisy);
+        noisy.convertTo(query, CvType.CV_8U);
+
+        Mat H64 = new Mat();
+        H.convertTo(H64, CvType.CV_64F);
+        return new Pair(srcColor, srcGray, query, H64);
+    }
+
+    // Features of a gray image limited to the maxKeypoints strongest keypoints, so matching can be
+    // measured at a fixed number of keypoints regardless of the image. A low detector threshold is
+    // used so that there are enough keypoints to choose from
+    static ImageFeatures features(Mat gray, int maxKeypoints) {
+        AKAZE akaze = AKAZE.create(AKAZE.DESCRIPTOR_MLDB, 0, 3, 0.0001f, 4, 4, KAZE.DIFF_PM_G2);
+        MatOfKeyPoint detected = new MatOfKeyPoint();
+        akaze.detect(gray, detected);
+
+        KeyPoint[] kps = detected.toArray();
+        Arrays.sort(kps, (k1, k2) -> Float.compare(k2.response, k1.response));
+        MatOfKeyPoint strongest = new MatOfKeyPoint(
+                Arrays.copyOf(kps, Math.min(kps.length, maxKeypoints)));
+
+        Mat descriptors = new Mat();
+        akaze.compute(gray, strongest, descriptors);
+        return new ImageFeatures(strongest, descriptors, gray.cols(), gray.rows());
+    }
+
+    // Gray box around a bolt, in the same way BoltMeasurer cuts it out of the photo
+    static Mat boltBox(Mat gray, double[] box) {
+        return gray.submat(boltRect(gray, box));
+    }
+
+    // Bounds of the box around a bolt in the photo
+    static Rect boltRect(Mat gray, double[] box) {
+        int left = (int) (box[0] * gray.cols());
+        int top = (int) (box[1] * gray.rows());
+        int right = (int) (box[2] * gray.cols());
+        int bottom = (int) (box[3] * gray.rows());
+        return new Rect(left, top, right - left, bottom - top);
+    }
+
+    // Jagged outline of a tilted ellipse with the given number of points, a few pixels apart and
+    // with a pixel or two of noise, like the outline of a bolt in a noisy high resolution crop
+    static MatOfPoint boltOutline(int points) {
+        Random random = new Random(42);
+        double a = points / 4.0;
+        double b = points / 7.0;
+        double angle = Math.toRadians(30);
+        Point[] outline = new Point[points];
+        for (int i = 0; i < points; i++) {
+            double t = 2 * Math.PI * i / points;
+            double x = a * Math.cos(t) + random.nextGaussian();
+            double y = b * Math.sin(t) + random.nextGaussian();
+            outline[i] = new Point(
+                    Math.round(a + x * Math.cos(angle) - y * Math.sin(angle)),
+                    Math.round(a + x * Math.sin(angle) + y * Math.cos(angle)));
+        }
+        return new MatOfPoint(outline);
+    }
+
+    // RGBA overlay of route lines the size of the image, like the one drawn over identified routes
+    static Mat routeLines(Mat image) {
+        Mat lines = Mat.zeros(image.size(), CvType.CV_8UC4);
+        int w = image.cols();
+        int h = image.rows();
+        Point[] route = {
+                new Point(0.45 * w, 0.95 * h), new Point(0.5 * w, 0.7 * h),
+                new Point(0.42 * w, 0.45 * h), new Point(0.48 * w, 0.2 * h),
+                new Point(0.55 * w, 0.05 * h)
+        };
+        for (int i = 1; i < route.length; i++) {
+            Imgproc.line(lines, route[i - 1], route[i], new Scalar(255, 0, 0, 255), 10);
+        }
+        return lines;
+    }
+}
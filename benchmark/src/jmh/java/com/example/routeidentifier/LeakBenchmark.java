@@ -0,0 +1,95 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+// Checks that identifications don't leak native memory. A batch of identifications runs the way
+// the app makes them, a chosen route coarse to fine and then every route of the area with the
+// ranker, and the run fails if the Mats counted by MatScope aren't back to what they were before,
+// or if any were collected by the GC without being released
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, batchSize = 10)
+@Measurement(iterations = 1, batchSize = 1000)
+@Fork(1)
+public class LeakBenchmark {
+    // Size the app matches reference images at
+    private static final int SIZE = 750;
+    // How long the matches the ranker leaves running after a clear win get to release their
+    // homographies before the count is checked
+    private static final long SETTLE_MS = 5000;
+
+    private final FeatureDetector detector = new FeatureDetector();
+    private final RouteRanker ranker = new RouteRanker(Runtime.getRuntime().availableProcessors());
+    private final HashMap<String, ImageFeatures> routes = new HashMap<>();
+    private ImageFeatures reference;
+    private Mat refinement;
+    private Mat queryGray;
+    private int liveMats;
+    private long liveBytes;
+
+    @Setup
+    public void setup() {
+        Fixtures.Pair pair = Fixtures.loadPair("background.jpg", SIZE);
+        Fixtures.Pair other = Fixtures.loadPair("climbing1.png", SIZE);
+        reference = detector.computeFeatures(pair.srcGray);
+        refinement = FeatureDetector.getRefinementImage(pair.srcGray);
+        queryGray = pair.queryGray;
+        routes.put("background", reference);
+        routes.put("climbing", detector.computeFeatures(other.srcGray));
+        liveMats = MatScope.liveMats();
+        liveBytes = MatScope.liveBytes();
+    }
+
+    @Benchmark
+    public int identify() throws InterruptedException {
+        StageBenchmark.release(detector.getHomographyCoarseToFine(reference, refinement, queryGray));
+
+        ImageFeatures query = detector.computeFeatures(queryGray);
+        try {
+            List<RouteRanker.Result> ranked = ranker.rank(routes, query);
+            RouteRanker.release(ranked);
+            return ranked.size();
+        } finally {
+            query.release();
+        }
+    }
+
+    @TearDown
+    public void check() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_MS;
+        while (MatScope.liveMats() != liveMats && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        ranker.shutdown();
+
+        // Collect whatever is unreachable, so Mats that leaked are counted even if no GC ran
+        System.gc();
+        Thread.sleep(100);
+        String counts = String.format(Locale.US,
+                "Live Mats %d (%d KB) before, %d (%d KB) after, %d leaked", liveMats,
+                liveBytes / 1024, MatScope.liveMats(), MatScope.liveBytes() / 1024,
+                MatScope.leakedMats());
+        System.out.println(counts);
+        if (MatScope.liveMats() != liveMats || MatScope.liveBytes() != liveBytes
+                || MatScope.leakedMats() > 0) {
+            throw new IllegalStateException("Identifications leaked Mats. " + counts);
+        }
+    }
+}
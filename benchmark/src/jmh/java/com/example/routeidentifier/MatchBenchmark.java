@@ -0,0 +1,164 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.Core;
+import org.opencv.core.DMatch;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.features2d.BFMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+// Stages of route identification whose cost depends on the number of keypoints: building the
+// matcher, finding the two nearest neighbours, the ratio test and estimating the homography. The
+// matchers are compared on the same keypoints, and the setup prints how many of the exact matches
+// the approximate matcher finds and how many iterations each solver needs, so speed can be weighed
+// against accuracy. The baseline variants match and ratio test the way getGoodMatches did before
+// its results were kept in primitive arrays, with a list of DMatch per query keypoint and lists
+// of keypoints and points, so running them with the gc profiler shows what that allocated. They
+// always use OpenCV's brute force matcher, whatever the matcher parameter
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MatchBenchmark {
+    // Largest dimension of the images the keypoints are detected in
+    private static final int SIZE = 2048;
+
+    @Param({"background.jpg", "climbing1.png"})
+    public String photo;
+
+    // Number of keypoints in each image
+    @Param({"1000", "2000", "5000", "10000"})
+    public int keypoints;
+
+    @Param({"lsh", "bruteforce"})
+    public String matcher;
+
+    private ImageFeatures src;
+    private ImageFeatures query;
+    private HammingMatcher hammingMatcher;
+    private int[] nearest;
+    private int[] nearestDist;
+    private int[] secondDist;
+    private Matches goodMatches;
+    private BFMatcher bfMatcher;
+    private List<MatOfDMatch> knnMatches;
+
+    @Setup
+    public void setup() {
+        Fixtures.Pair pair = Fixtures.loadPair(photo, SIZE);
+        src = Fixtures.features(pair.srcGray, keypoints);
+        query = Fixtures.features(pair.queryGray, keypoints);
+        hammingMatcher = buildMatcher();
+
+        int n = query.size();
+        nearest = new int[n];
+        nearestDist = new int[n];
+        secondDist = new int[n];
+        hammingMatcher.knnMatch2(query.descriptors, nearest, nearestDist, secondDist);
+        goodMatches = FeatureDetector.ratioTest(src, query, nearest, nearestDist, secondDist);
+        bfMatcher = BFMatcher.create(Core.NORM_HAMMING, false);
+        knnMatches = new ArrayList<>();
+        bfMatcher.knnMatch(query.descriptors, src.descriptors, knnMatches, 2);
+
+        // Compare the nearest neighbours with the exact ones
+        int[] exact = new int[n];
+        new BruteForceHammingMatcher(src.descriptors).knnMatch2(query.descriptors, exact,
+                new int[n], new int[n]);
+        int found = 0;
+        for (int i = 0; i < n; i++) {
+            if (nearest[i] == exact[i]) found++;
+        }
+        int good = (goodMatches == null) ? 0 : goodMatches.size;
+        System.out.println(String.format(Locale.US,
+                "%s: %d src and %d query keypoints, recall %.3f, %d matches pass the ratio test",
+                matcher, src.size(), n, (double) found / Math.max(n, 1), good));
+
+        for (FeatureDetector.Solver solver : FeatureDetector.Solver.values()) {
+            FeatureDetector.setSolver(solver);
+            HomographyResult result = FeatureDetector.solve(goodMatches);
+            if (result == null) continue;
+            System.out.println(String.format(Locale.US,
+                    "%s: %d inliers after %d iterations, confidence %.4f",
+                    solver, result.inliers, result.iterations, result.confidence));
+        }
+    }
+
+    @Benchmark
+    public HammingMatcher buildMatcher() {
+        return matcher.equals("lsh")
+                ? new LshHammingMatcher(src.descriptors)
+                : new BruteForceHammingMatcher(src.descriptors);
+    }
+
+    @Benchmark
+    public int[] knnMatch() {
+        hammingMatcher.knnMatch2(query.descriptors, nearest, nearestDist, secondDist);
+        return nearest;
+    }
+
+    @Benchmark
+    public Matches ratioTest() {
+        return FeatureDetector.ratioTest(src, query, nearest, nearestDist, secondDist);
+    }
+
+    @Benchmark
+    public List<MatOfDMatch> knnMatchBaseline() {
+        List<MatOfDMatch> matches = new ArrayList<>();
+        bfMatcher.knnMatch(query.descriptors, src.descriptors, matches, 2);
+        for (MatOfDMatch m : matches) m.release();
+        return matches;
+    }
+
+    @Benchmark
+    public MatOfPoint2f[] ratioTestBaseline() {
+        List<KeyPoint> queryKeypoints = query.keypoints.toList();
+        List<KeyPoint> srcKeypoints = src.keypoints.toList();
+
+        float ratioThresh = 0.8f;
+        List<DMatch> good = new ArrayList<>();
+        List<Point> srcPoints = new ArrayList<>();
+        List<Point> queryPoints = new ArrayList<>();
+        for (MatOfDMatch knn : knnMatches) {
+            if (knn.rows() < 2) continue;
+            DMatch[] m = knn.toArray();
+            if (m[0].distance < ratioThresh * m[1].distance) {
+                good.add(m[0]);
+                srcPoints.add(srcKeypoints.get(m[0].trainIdx).pt);
+                queryPoints.add(queryKeypoints.get(m[0].queryIdx).pt);
+            }
+        }
+        if (good.isEmpty()) return null;
+
+        MatOfPoint2f[] points = {new MatOfPoint2f(), new MatOfPoint2f()};
+        points[0].fromList(srcPoints);
+        points[1].fromList(queryPoints);
+        points[0].release();
+        points[1].release();
+        return points;
+    }
+
+    @Benchmark
+    public HomographyResult ransac() {
+        FeatureDetector.setSolver(FeatureDetector.Solver.RANSAC);
+        return StageBenchmark.release(FeatureDetector.solve(goodMatches));
+    }
+
+    @Benchmark
+    public HomographyResult prosac() {
+        FeatureDetector.setSolver(FeatureDetector.Solver.PROSAC);
+        return StageBenchmark.release(FeatureDetector.solve(goodMatches));
+    }
+}
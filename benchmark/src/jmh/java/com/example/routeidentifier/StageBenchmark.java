@@ -0,0 +1,117 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// Stages of route identification whose cost depends on the size of the images
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StageBenchmark {
+    @Param({"background.jpg", "climbing1.png"})
+    public String photo;
+
+    // Largest dimension of the images
+    @Param({"640", "1280", "2048"})
+    public int size;
+
+    private final FeatureDetector detector = new FeatureDetector();
+    private Fixtures.Pair pair;
+    private ImageFeatures srcFeatures;
+    private Mat srcRefinement;
+    private Mat lines;
+    private Mat gray;
+
+    @Setup
+    public void setup() {
+        pair = Fixtures.loadPair(photo, size);
+        srcFeatures = detector.computeFeatures(pair.srcGray);
+        srcRefinement = FeatureDetector.getRefinementImage(pair.srcGray);
+        lines = Fixtures.routeLines(pair.srcGray);
+        gray = new Mat();
+    }
+
+    // Converting the RGBA pixels of a picture to gray
+    @Benchmark
+    public Mat grayConversion() {
+        Mat gray = new Mat();
+        Imgproc.cvtColor(pair.srcColor, gray, Imgproc.COLOR_RGBA2GRAY);
+        gray.release();
+        return gray;
+    }
+
+    // Copying a picture's pixels into an RGBA Mat and converting it to gray, the way
+    // ImagePreprocessor.toGray handles a bitmap, with the color copy of the picture standing in
+    // for the bitmap. A new buffer of each is allocated every time
+    @Benchmark
+    public Mat bitmapToGrayFresh() {
+        Mat rgba = new Mat(pair.srcColor.rows(), pair.srcColor.cols(), CvType.CV_8UC4);
+        pair.srcColor.copyTo(rgba);
+        Imgproc.cvtColor(rgba, rgba, Imgproc.COLOR_RGBA2GRAY);
+        rgba.release();
+        return rgba;
+    }
+
+    // The same with the RGBA buffer from MatPool and the gray one reused
+    @Benchmark
+    public Mat bitmapToGrayPooled() {
+        Mat rgba = MatPool.acquire(pair.srcColor.rows(), pair.srcColor.cols(), CvType.CV_8UC4);
+        pair.srcColor.copyTo(rgba);
+        Imgproc.cvtColor(rgba, gray, Imgproc.COLOR_RGBA2GRAY);
+        MatPool.recycle(rgba);
+        return gray;
+    }
+
+    // Detecting keypoints and computing their descriptors
+    @Benchmark
+    public ImageFeatures detectAndCompute() {
+        ImageFeatures features = detector.computeFeatures(pair.queryGray);
+        features.release();
+        return features;
+    }
+
+    // Warping the route lines onto the query image
+    @Benchmark
+    public Mat warp() {
+        Mat warp = new Mat();
+        Imgproc.warpPerspective(lines, warp, pair.H, pair.queryGray.size());
+        warp.release();
+        return warp;
+    }
+
+    // Identifying a route whose features were computed ahead of time, from query image to homography
+    @Benchmark
+    public HomographyResult homography() {
+        return release(detector.getHomography(srcFeatures, pair.queryGray));
+    }
+
+    @Benchmark
+    public HomographyResult homographyCoarseToFine() {
+        return release(detector.getHomographyCoarseToFine(pair.srcGray, pair.queryGray));
+    }
+
+    // The same with the reference features computed ahead of time and the reference image kept at
+    // the size it's refined at, the way the app identifies a chosen route
+    @Benchmark
+    public HomographyResult homographyCoarseToFineStored() {
+        return release(detector.getHomographyCoarseToFine(srcFeatures, srcRefinement,
+                pair.queryGray));
+    }
+
+    // Release the homography, which MatScope would otherwise count as live for the whole run
+    static HomographyResult release(HomographyResult result) {
+        if (result != null) result.release();
+        return result;
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.routeidentifier;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Shortlisting routes with the retrieval index, as the number of indexed images grows. The images
+// are crops of the topo photos at random positions, standing in for the routes of an area, and
+// the queries are shots of some of them made like Fixtures.loadPair. The setup prints how often
+// the crop a query was made from is the best match and among the top k, and the benchmark
+// measures how long a query takes
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class VocabularyBenchmark {
+    // Largest dimension of the photos the crops are cut from, and of the crops
+    private static final int SIZE = 2048;
+    private static final int CROP = 320;
+    private static final int KEYPOINTS = 300;
+    private static final int QUERIES = 50;
+    // Same shape of tree and shortlist as the app
+    private static final int BRANCHING = 8;
+    private static final int DEPTH = 4;
+    private static final int TOP_K = 5;
+
+    private static final String[] PHOTOS = {"background.jpg", "climbing1.png"};
+
+    // Number of indexed images
+    @Param({"100", "1000"})
+    public int images;
+
+    private VocabularyTree index;
+    private Mat[] queries;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Mat[] photos = new Mat[PHOTOS.length];
+        for (int i = 0; i < photos.length; i++) photos[i] = Fixtures.loadRgba(PHOTOS[i], SIZE);
+
+        // Cut the crops, and make query shots of the first ones
+        Random random = new Random(42);
+        List<Mat> descriptors = new ArrayList<>();
+        queries = new Mat[QUERIES];
+        for (int i = 0; i < images; i++) {
+            Mat photo = photos[i % photos.length];
+            Rect rect = new Rect(random.nextInt(photo.cols() - CROP),
+                    random.nextInt(photo.rows() - CROP), CROP, CROP);
+            Mat crop = photo.submat(rect).clone();
+            Mat gray = Fixtures.toGray(crop);
+            descriptors.add(Fixtures.features(gray, KEYPOINTS).descriptors);
+            if (i < QUERIES) {
+                queries[i] = Fixtures.features(Fixtures.makePair(crop).queryGray, KEYPOINTS)
+                        .descriptors;
+            }
+        }
+
+        // Train the vocabulary on every image, as the app does for an area, and index them
+        Mat training = new Mat();
+        Core.vconcat(descriptors, training);
+        index = VocabularyTree.train(training, BRANCHING, DEPTH, 0);
+        for (int i = 0; i < images; i++) index.add("crop" + i, descriptors.get(i));
+
+        int first = 0;
+        int topK = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            List<String> found = index.query(queries[i], TOP_K);
+            if (!found.isEmpty() && found.get(0).equals("crop" + i)) first++;
+            if (found.contains("crop" + i)) topK++;
+        }
+        System.out.println(String.format(Locale.US, "%d images: recall@1 %.2f, recall@%d %.2f",
+                images, (double) first / QUERIES, TOP_K, (double) topK / QUERIES));
+    }
+
+    @Benchmark
+    public List<String> query() {
+        next = (next + 1) % QUERIES;
+        return index.query(queries[next], TOP_K);
+    }
+}